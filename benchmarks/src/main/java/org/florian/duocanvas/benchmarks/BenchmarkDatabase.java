@@ -0,0 +1,37 @@
+package org.florian.duocanvas.benchmarks;
+
+import org.florian.duocanvas.WorkerPools;
+import org.florian.duocanvas.db.CanvasDatabase;
+import org.florian.duocanvas.db.DrawJournal;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+/**
+ * Opens a throwaway database and runs the journal writer like Main does, so draws
+ * are measured together with their journaling and the queue doesn't grow without bound.
+ * Has to run before anything else touches CanvasDatabase.
+ */
+final class BenchmarkDatabase {
+
+    private static boolean started;
+
+    private BenchmarkDatabase() {
+    }
+
+    static synchronized void start() throws IOException {
+        if (started) {
+            return;
+        }
+        Path database = Files.createTempFile("duocanvas-benchmark", ".db");
+        database.toFile().deleteOnExit();
+        System.setProperty("duocanvas.database", database.toString());
+        if (!CanvasDatabase.initiateDatabase()) {
+            throw new IllegalStateException("Could not open " + database);
+        }
+        WorkerPools.repeat("draw-journal", Duration.ofMillis(DrawJournal.FLUSH_MILLIS), DrawJournal::flush);
+        started = true;
+    }
+}
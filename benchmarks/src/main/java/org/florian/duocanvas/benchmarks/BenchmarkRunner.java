@@ -0,0 +1,28 @@
+package org.florian.duocanvas.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs every benchmark, or the ones matching the first argument, with the GC profiler attached
+ * so each result also reports the allocation rate per operation.
+ * Throughput and latency percentiles (SampleTime) are set on the benchmark classes.
+ *
+ * <pre>
+ * mvn -f benchmarks/pom.xml package
+ * java --enable-preview -jar benchmarks/target/benchmarks.jar [regex]
+ * </pre>
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(args.length > 0 ? args[0] : BenchmarkRunner.class.getPackageName() + ".*Benchmark")
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
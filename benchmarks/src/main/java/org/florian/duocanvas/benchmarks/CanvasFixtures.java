@@ -0,0 +1,45 @@
+package org.florian.duocanvas.benchmarks;
+
+import org.florian.duocanvas.canvas.Palette;
+import org.florian.duocanvas.canvas.PixelStore;
+import org.florian.duocanvas.session.CanvasSession;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Canvases with a fixed share of painted pixels. The same fill always paints the same pixels,
+ * so runs stay comparable.
+ */
+final class CanvasFixtures {
+
+    static final int SIZE = 1000;
+    static final String[] PALETTE = CanvasMemoryBenchmark.COLORS;
+    static final int OWNERS = 500;
+
+    private CanvasFixtures() {
+    }
+
+    /* A SIZE x SIZE canvas with fillPercent of its pixels painted and the draw limit turned off. */
+    static CanvasSession canvas(String canvasCode, int fillPercent) {
+        return canvas(canvasCode, fillPercent, false);
+    }
+
+    /* Same pixels, optionally on a canvas limited to PALETTE. */
+    static CanvasSession canvas(String canvasCode, int fillPercent, boolean withPalette) {
+        Palette palette = withPalette ? Palette.parse(List.of(PALETTE)) : null;
+        PixelStore pixels = new PixelStore(SIZE, SIZE, palette);
+        Random random = new Random(42);
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                if (random.nextInt(100) < fillPercent) {
+                    int color = PixelStore.parseColor(PALETTE[random.nextInt(PALETTE.length)]);
+                    pixels.setPixel(x, y, color, "participant-" + random.nextInt(OWNERS));
+                }
+            }
+        }
+        CanvasSession session = new CanvasSession(canvasCode, pixels);
+        session.getDrawLimiter().setLimits(0, 1);
+        return session;
+    }
+}
@@ -0,0 +1,79 @@
+package org.florian.duocanvas.benchmarks;
+
+import org.florian.duocanvas.canvas.CanvasPixel;
+import org.florian.duocanvas.canvas.PixelStore;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Compares the retained heap of a fully painted 1000x1000 canvas between the old
+ * CanvasPixel[][] layout and the packed PixelStore.
+ * Run with a fixed heap, e.g. java -Xms2g -Xmx2g --enable-preview -cp ... CanvasMemoryBenchmark
+ */
+public class CanvasMemoryBenchmark {
+
+    static final int SIZE = 1000;
+    static final int CANVASES = 10;
+    static final String[] COLORS = {"#dce0e2", "#898d91", "#000000", "#9f641c", "#f69bae", "#2d90f3"};
+    static final String[] OWNERS = {"owner-a", "owner-b", "owner-c", "owner-d"};
+
+    public static void main(String[] args) {
+        long legacyBytes = measure(CanvasMemoryBenchmark::fillLegacyCanvas);
+        long packedBytes = measure(CanvasMemoryBenchmark::fillPixelStore);
+
+        System.out.printf("CanvasPixel[][] : %,d bytes per canvas%n", legacyBytes);
+        System.out.printf("PixelStore      : %,d bytes per canvas%n", packedBytes);
+        System.out.printf("Reduction       : %.1fx%n", (double) legacyBytes / packedBytes);
+    }
+
+    private static long measure(java.util.function.Supplier<Object> canvasFactory) {
+        Object[] retained = new Object[CANVASES];
+        long before = usedHeap();
+        for (int i = 0; i < CANVASES; i++) {
+            retained[i] = canvasFactory.get();
+        }
+        long after = usedHeap();
+        if (retained[CANVASES - 1] == null) {
+            throw new IllegalStateException();
+        }
+        return (after - before) / CANVASES;
+    }
+
+    private static Object fillLegacyCanvas() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        CanvasPixel[][] canvasData = new CanvasPixel[SIZE][SIZE];
+        for (int x = 0; x < SIZE; x++) {
+            for (int y = 0; y < SIZE; y++) {
+                // Colors arrive as freshly parsed JSON strings, so each pixel holds its own copy.
+                String color = new String(COLORS[random.nextInt(COLORS.length)]);
+                canvasData[x][y] = new CanvasPixel(OWNERS[random.nextInt(OWNERS.length)], x, y, color);
+            }
+        }
+        return canvasData;
+    }
+
+    private static Object fillPixelStore() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        PixelStore store = new PixelStore(SIZE, SIZE);
+        for (int x = 0; x < SIZE; x++) {
+            for (int y = 0; y < SIZE; y++) {
+                int color = PixelStore.parseColor(COLORS[random.nextInt(COLORS.length)]);
+                store.setPixel(x, y, color, OWNERS[random.nextInt(OWNERS.length)]);
+            }
+        }
+        return store;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,74 @@
+package org.florian.duocanvas.benchmarks;
+
+import io.javalin.websocket.WsMessageContext;
+import org.florian.duocanvas.Main;
+import org.florian.duocanvas.session.CanvasSession;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The JSON socket path in front of a draw: parsing the message, looking up the canvas and binding the request,
+ * compared with the keep-alive pings the client sends in between.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--enable-preview", "-Dlog4j2.configurationFile=log4j2-benchmark.xml"})
+public class DispatchBenchmark {
+
+    private static final int DRAWS = 4096;
+
+    private CanvasSession session;
+    private WsMessageContext[] draws;
+    private WsMessageContext keepAlive;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        BenchmarkDatabase.start();
+        session = CanvasFixtures.canvas("DISPATCH", 10);
+        Main.ACTIVE_CANVAS_SESSIONS.put(session.canvasCode, session);
+
+        Random random = new Random(7);
+        draws = new WsMessageContext[DRAWS];
+        for (int i = 0; i < DRAWS; i++) {
+            String message = String.format(
+                    "{\"requestType\":\"draw\",\"canvasCode\":\"%s\",\"x\":%d,\"y\":%d,\"color\":\"%s\",\"date\":0}",
+                    session.canvasCode, random.nextInt(CanvasFixtures.SIZE), random.nextInt(CanvasFixtures.SIZE),
+                    CanvasFixtures.PALETTE[random.nextInt(CanvasFixtures.PALETTE.length)]
+            );
+            draws[i] = StubSockets.context("drawer", message);
+        }
+        keepAlive = StubSockets.context("drawer", "0");
+    }
+
+    @TearDown
+    public void tearDown() {
+        Main.ACTIVE_CANVAS_SESSIONS.remove(session.canvasCode, session);
+    }
+
+    @Benchmark
+    public void dispatchDraw() throws IOException {
+        Main.handleMessage(draws[next++ & (DRAWS - 1)]);
+    }
+
+    @Benchmark
+    public void dispatchKeepAlive() throws IOException {
+        Main.handleMessage(keepAlive);
+    }
+}
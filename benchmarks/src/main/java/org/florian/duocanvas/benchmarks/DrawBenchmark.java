@@ -0,0 +1,105 @@
+package org.florian.duocanvas.benchmarks;
+
+import io.javalin.websocket.WsMessageContext;
+import org.florian.duocanvas.canvas.PixelStore;
+import org.florian.duocanvas.json.requests.DrawRequest;
+import org.florian.duocanvas.protocol.BinaryProtocol;
+import org.florian.duocanvas.session.CanvasSession;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single draw from arrival to the last subscriber's send.
+ * Every tenth subscriber uses the JSON protocol, the rest binary, all of them watch the whole canvas.
+ * The broadcast variants fork with duocanvas.updateTick=0 so the fan-out happens inside the measured call;
+ * with batching on it runs on a virtual thread and only shows up as its allocations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--enable-preview", "-Dlog4j2.configurationFile=log4j2-benchmark.xml"})
+public class DrawBenchmark {
+
+    private static final int DRAWS = 4096;
+
+    @Param({"0", "10", "100"})
+    public int fill;
+
+    @Param({"1", "100", "1000"})
+    public int subscribers;
+
+    private CanvasSession session;
+    private WsMessageContext drawer;
+    private DrawRequest[] jsonDraws;
+    private ByteBuffer[] binaryDraws;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        BenchmarkDatabase.start();
+        session = CanvasFixtures.canvas("DRAWBNCH", fill);
+        PixelStore pixels = session.getCanvasData();
+        for (int i = 0; i < subscribers; i++) {
+            String sessionId = "subscriber-" + i;
+            session.addParticipant(sessionId);
+            session.addSubscriber(StubSockets.context(sessionId, ""), i % 10 != 0, pixels.getAllTiles());
+        }
+        drawer = StubSockets.context("subscriber-0", "");
+
+        Random random = new Random(7);
+        jsonDraws = new DrawRequest[DRAWS];
+        binaryDraws = new ByteBuffer[DRAWS];
+        for (int i = 0; i < DRAWS; i++) {
+            int x = random.nextInt(CanvasFixtures.SIZE);
+            int y = random.nextInt(CanvasFixtures.SIZE);
+            String color = CanvasFixtures.PALETTE[random.nextInt(CanvasFixtures.PALETTE.length)];
+            jsonDraws[i] = new DrawRequest("draw", session.canvasCode, x, y, color, 0);
+
+            int rgb = PixelStore.parseColor(color);
+            ByteBuffer frame = ByteBuffer.allocate(BinaryProtocol.DRAW_LENGTH);
+            frame.put(BinaryProtocol.OP_DRAW).putInt(x).putInt(y)
+                    .put((byte) (rgb >> 16)).put((byte) (rgb >> 8)).put((byte) rgb);
+            binaryDraws[i] = frame.flip();
+        }
+    }
+
+    @Benchmark
+    public void drawJson() throws IOException {
+        session.handlePacket(drawer, jsonDraws[next++ & (DRAWS - 1)]);
+    }
+
+    @Benchmark
+    public void drawBinary() {
+        session.handleBinaryDraw(drawer, binaryDraws[next++ & (DRAWS - 1)]);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = {"--enable-preview", "-Dlog4j2.configurationFile=log4j2-benchmark.xml",
+            "-Dduocanvas.updateTick=0"})
+    public void drawJsonAndBroadcast() throws IOException {
+        session.handlePacket(drawer, jsonDraws[next++ & (DRAWS - 1)]);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = {"--enable-preview", "-Dlog4j2.configurationFile=log4j2-benchmark.xml",
+            "-Dduocanvas.updateTick=0"})
+    public void drawBinaryAndBroadcast() {
+        session.handleBinaryDraw(drawer, binaryDraws[next++ & (DRAWS - 1)]);
+    }
+}
@@ -0,0 +1,54 @@
+package org.florian.duocanvas.benchmarks;
+
+import org.florian.duocanvas.session.CanvasSession;
+import org.florian.duocanvas.session.ImageCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PNG export. renderPng is the GET /image path after a draw, base64 the uncached websocket image request.
+ * Palette canvases are written as indexed PNGs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--enable-preview", "-Dlog4j2.configurationFile=log4j2-benchmark.xml"})
+public class ImageBenchmark {
+
+    @Param({"0", "10", "100"})
+    public int fill;
+
+    @Param({"false", "true"})
+    public boolean palette;
+
+    private CanvasSession session;
+
+    @Setup
+    public void setUp() {
+        session = CanvasFixtures.canvas("IMGBENCH", fill, palette);
+    }
+
+    @Benchmark
+    public byte[] renderPng() throws IOException {
+        return ImageCache.renderPng(session.getCanvasData());
+    }
+
+    @Benchmark
+    public String base64() throws IOException {
+        return new ImageCache(session.getCanvasData()).getBase64();
+    }
+}
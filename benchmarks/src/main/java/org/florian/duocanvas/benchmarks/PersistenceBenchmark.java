@@ -0,0 +1,55 @@
+package org.florian.duocanvas.benchmarks;
+
+import org.florian.duocanvas.db.CanvasDatabase;
+import org.florian.duocanvas.session.CanvasSession;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Canvas serialization as done by every backup (encode) and every canvas load (decode).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--enable-preview", "-Dlog4j2.configurationFile=log4j2-benchmark.xml"})
+public class PersistenceBenchmark {
+
+    @Param({"0", "10", "100"})
+    public int fill;
+
+    @Param({"false", "true"})
+    public boolean palette;
+
+    private CanvasSession session;
+    private byte[] canvasBytes;
+
+    @Setup
+    public void setUp() throws IOException {
+        session = CanvasFixtures.canvas("DBBENCH0", fill, palette);
+        canvasBytes = CanvasDatabase.getCanvasDataAsBytes(session);
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return CanvasDatabase.getCanvasDataAsBytes(session);
+    }
+
+    @Benchmark
+    public CanvasSession decode() throws IOException {
+        return CanvasDatabase.getCanvasDataFromBytes(canvasBytes);
+    }
+}
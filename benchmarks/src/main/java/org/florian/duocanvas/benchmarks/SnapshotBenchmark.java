@@ -0,0 +1,66 @@
+package org.florian.duocanvas.benchmarks;
+
+import io.javalin.websocket.WsMessageContext;
+import org.florian.duocanvas.canvas.PixelStore;
+import org.florian.duocanvas.json.requests.CanvasRequest;
+import org.florian.duocanvas.session.CanvasSession;
+import org.florian.duocanvas.session.SnapshotCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A client joining a canvas: canvasInfo plus the snapshot of its whole viewport.
+ * join measures the usual case where the tile chunks are already cached,
+ * encodeChunks the first join after every tile changed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--enable-preview", "-Dlog4j2.configurationFile=log4j2-benchmark.xml"})
+public class SnapshotBenchmark {
+
+    @Param({"0", "10", "100"})
+    public int fill;
+
+    @Param({"binary", "json"})
+    public String protocol;
+
+    private CanvasSession session;
+    private WsMessageContext viewer;
+    private CanvasRequest request;
+
+    @Setup
+    public void setUp() throws IOException {
+        BenchmarkDatabase.start();
+        session = CanvasFixtures.canvas("SNAPBNCH", fill);
+        viewer = StubSockets.context("viewer", "");
+        request = new CanvasRequest("canvas", session.canvasCode, protocol, null);
+    }
+
+    @Benchmark
+    public void join() throws IOException {
+        session.handlePacket(viewer, request);
+    }
+
+    @Benchmark
+    public List<ByteBuffer> encodeChunks() {
+        PixelStore pixels = session.getCanvasData();
+        return new SnapshotCache(pixels).getChunks(pixels.getAllTiles(), null);
+    }
+}
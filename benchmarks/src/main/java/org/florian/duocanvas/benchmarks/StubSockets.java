@@ -0,0 +1,68 @@
+package org.florian.duocanvas.benchmarks;
+
+import io.javalin.websocket.WsMessageContext;
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * WebSocket contexts backed by a fake Jetty session. Every frame is accepted at once and only
+ * its size is counted, so the benchmarks measure the server side of a send and nothing else.
+ */
+final class StubSockets {
+
+    private static final LongAdder BYTES_SENT = new LongAdder();
+
+    private static final RemoteEndpoint REMOTE = proxy(RemoteEndpoint.class, (proxy, method, args) -> {
+        switch (method.getName()) {
+            case "sendString" -> BYTES_SENT.add(((String) args[0]).length());
+            case "sendBytes" -> BYTES_SENT.add(((ByteBuffer) args[0]).remaining());
+            default -> {
+                return defaultValue(proxy, method.getName(), method.getReturnType(), args);
+            }
+        }
+        if (args.length > 1 && args[1] instanceof WriteCallback callback) {
+            callback.writeSuccess();
+        }
+        return null;
+    });
+
+    private static final Session SESSION = proxy(Session.class, (proxy, method, args) -> switch (method.getName()) {
+        case "getRemote" -> REMOTE;
+        case "isOpen" -> true;
+        default -> defaultValue(proxy, method.getName(), method.getReturnType(), args);
+    });
+
+    private StubSockets() {
+    }
+
+    static WsMessageContext context(String sessionId, String message) {
+        return new WsMessageContext(sessionId, SESSION, message);
+    }
+
+    static long bytesSent() {
+        return BYTES_SENT.sum();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(StubSockets.class.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+
+    private static Object defaultValue(Object proxy, String name, Class<?> returnType, Object[] args) {
+        return switch (name) {
+            case "equals" -> proxy == args[0];
+            case "hashCode" -> System.identityHashCode(proxy);
+            case "toString" -> "StubSocket";
+            default -> returnType == void.class || !returnType.isPrimitive()
+                    ? null
+                    : Array.get(Array.newInstance(returnType, 1), 0);
+        };
+    }
+}
@@ -0,0 +1,53 @@
+package org.florian.duocanvas.loadtest;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A canvas under test. Every draw on it gets the next sequence number, which picks its pixel and its color,
+ * so a client receiving an update can tell from the color alone when the draw was sent.
+ */
+final class LoadCanvas {
+
+    // Send times are kept for the last RING draws, far more than are in flight at once.
+    private static final int RING = 1 << 18;
+
+    final String code;
+    final int width;
+    final int height;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLongArray sentAt = new AtomicLongArray(RING);
+    private final AtomicInteger subscribers = new AtomicInteger();
+
+    LoadCanvas(String code, int width, int height) {
+        this.code = code;
+        this.width = width;
+        this.height = height;
+    }
+
+    long nextSequence() {
+        return sequence.getAndIncrement();
+    }
+
+    static int colorOf(long sequence) {
+        return (int) sequence & 0xFFFFFF;
+    }
+
+    void markSent(int rgb, long nanos) {
+        sentAt.set(rgb & (RING - 1), nanos);
+    }
+
+    /* When the draw with that color was sent, 0 if unknown. */
+    long sentAt(int rgb) {
+        return sentAt.get(rgb & (RING - 1));
+    }
+
+    void addSubscriber() {
+        subscribers.incrementAndGet();
+    }
+
+    int getSubscribers() {
+        return subscribers.get();
+    }
+}
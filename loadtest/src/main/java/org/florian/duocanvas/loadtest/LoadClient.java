@@ -0,0 +1,308 @@
+package org.florian.duocanvas.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.florian.duocanvas.canvas.PixelStore;
+import org.florian.duocanvas.json.responses.DrawResponse;
+import org.florian.duocanvas.protocol.BinaryProtocol;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One simulated browser on the canvas socket. Viewers and painters join a canvas and count the updates
+ * they receive, painters also draw on it. Creators don't join, they create canvases and download images.
+ * The listener callbacks of one socket never overlap, so the receiving state needs no locking.
+ */
+final class LoadClient implements WebSocket.Listener {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final LoadStats stats;
+    private final LoadCanvas canvas;
+    private final boolean binary;
+    private final CompletableFuture<Void> loaded = new CompletableFuture<>();
+    // Responses arrive in the order of the requests, so each queue holds the send times of the open ones.
+    private final Queue<Long> drawsInFlight = new ConcurrentLinkedQueue<>();
+    private final Queue<Long> imagesInFlight = new ConcurrentLinkedQueue<>();
+    private final Queue<CompletableFuture<String>> sessionsInFlight = new ConcurrentLinkedQueue<>();
+    private volatile WebSocket socket;
+    private volatile boolean closing;
+    private final ReentrantLock sendLock = new ReentrantLock();
+
+    private final StringBuilder text = new StringBuilder();
+    private ByteBuffer binaryFrame = ByteBuffer.allocate(0);
+    private int pendingChunks;
+    private int snapshots;
+
+    private LoadClient(LoadStats stats, LoadCanvas canvas, boolean binary) {
+        this.stats = stats;
+        this.canvas = canvas;
+        this.binary = binary;
+    }
+
+    /* Canvas is null for creators. */
+    static CompletableFuture<LoadClient> connect(HttpClient http, URI server, LoadStats stats, LoadCanvas canvas,
+                                                 boolean binary) {
+        LoadClient client = new LoadClient(stats, canvas, binary);
+        long start = System.nanoTime();
+        return http.newWebSocketBuilder().buildAsync(server, client).thenApply(socket -> {
+            client.socket = socket;
+            stats.connectLatency.recordSince(start);
+            stats.connected.increment();
+            return client;
+        });
+    }
+
+    /* Subscribes to the whole canvas, the returned future completes once its snapshot arrived. */
+    CompletableFuture<Void> join() {
+        ObjectNode request = request("canvas", canvas.code);
+        if (binary) {
+            request.put("protocol", BinaryProtocol.PROTOCOL_NAME);
+        }
+        send(request.toString());
+        return loaded;
+    }
+
+    void draw() {
+        long sequence = canvas.nextSequence();
+        int x = (int) (sequence % canvas.width);
+        int y = (int) (sequence / canvas.width % canvas.height);
+        int rgb = LoadCanvas.colorOf(sequence);
+        long now = System.nanoTime();
+        canvas.markSent(rgb, now);
+        drawsInFlight.add(now);
+        stats.drawsSent.increment();
+        if (binary) {
+            ByteBuffer frame = ByteBuffer.allocate(BinaryProtocol.DRAW_LENGTH);
+            frame.put(BinaryProtocol.OP_DRAW).putInt(x).putInt(y)
+                    .put((byte) (rgb >> 16)).put((byte) (rgb >> 8)).put((byte) rgb);
+            send(frame.flip());
+        } else {
+            send(request("draw", canvas.code)
+                    .put("x", x)
+                    .put("y", y)
+                    .put("color", PixelStore.formatColor(rgb))
+                    .put("date", 0)
+                    .toString());
+        }
+    }
+
+    /* Completes with the new canvas' code, or null if the server refused to create it. */
+    CompletableFuture<String> createCanvas(int size, int drawRate, int drawBurst) {
+        CompletableFuture<String> code = new CompletableFuture<>();
+        long start = System.nanoTime();
+        sessionsInFlight.add(code);
+        send(request("session", null)
+                .put("width", size)
+                .put("height", size)
+                .put("drawRate", drawRate)
+                .put("drawBurst", drawBurst)
+                .toString());
+        return code.whenComplete((created, e) -> {
+            if (created != null) {
+                stats.sessionLatency.recordSince(start);
+                stats.sessionsCreated.increment();
+            }
+        });
+    }
+
+    void requestImage(String canvasCode) {
+        imagesInFlight.add(System.nanoTime());
+        send(request("image", canvasCode).toString());
+    }
+
+    void close() {
+        closing = true;
+        WebSocket current = socket;
+        if (current != null) {
+            current.abort();
+        }
+    }
+
+    private static ObjectNode request(String requestType, String canvasCode) {
+        return OBJECT_MAPPER.createObjectNode().put("requestType", requestType).put("canvasCode", canvasCode);
+    }
+
+    // A WebSocket allows one outstanding send. Not synchronized: a virtual thread waiting inside a monitor
+    // pins its carrier, and the carriers are needed to complete the sends.
+    private void send(String message) {
+        sendLock.lock();
+        try {
+            socket.sendText(message, true).join();
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    private void send(ByteBuffer frame) {
+        sendLock.lock();
+        try {
+            socket.sendBinary(frame, true).join();
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    @Override
+    public void onOpen(WebSocket webSocket) {
+        socket = webSocket;
+        webSocket.request(1);
+    }
+
+    @Override
+    public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+        stats.bytesReceived.add(data.length());
+        text.append(data);
+        if (last) {
+            try {
+                handleText(OBJECT_MAPPER.readTree(text.toString()));
+            } catch (IOException e) {
+                // Not a message this harness waits for.
+            }
+            text.setLength(0);
+        }
+        webSocket.request(1);
+        return null;
+    }
+
+    @Override
+    public CompletionStage<?> onBinary(WebSocket webSocket, ByteBuffer data, boolean last) {
+        stats.bytesReceived.add(data.remaining());
+        if (last && binaryFrame.position() == 0) {
+            handleBinary(data);
+        } else {
+            if (binaryFrame.remaining() < data.remaining()) {
+                binaryFrame = ByteBuffer.allocate(binaryFrame.position() + data.remaining() * 2)
+                        .put(binaryFrame.flip());
+            }
+            binaryFrame.put(data);
+            if (last) {
+                handleBinary(binaryFrame.flip());
+                binaryFrame.clear();
+            }
+        }
+        webSocket.request(1);
+        return null;
+    }
+
+    @Override
+    public CompletionStage<?> onClose(WebSocket webSocket, int statusCode, String reason) {
+        closed();
+        return null;
+    }
+
+    @Override
+    public void onError(WebSocket webSocket, Throwable error) {
+        closed();
+    }
+
+    private void closed() {
+        if (!closing) {
+            stats.closedByServer.increment();
+        }
+        loaded.completeExceptionally(new IOException("Connection closed"));
+        sessionsInFlight.forEach(code -> code.complete(null));
+    }
+
+    private void handleText(JsonNode message) {
+        switch (message.path("type").asText()) {
+            case "sessionResponse" -> {
+                CompletableFuture<String> code = sessionsInFlight.poll();
+                if (code != null) {
+                    JsonNode canvasCode = message.path("canvasCode");
+                    code.complete(canvasCode.isTextual() ? canvasCode.asText() : null);
+                }
+            }
+            case "canvasResponse" -> snapshotLoaded();
+            case "canvasUpdate" -> update(PixelStore.parseColor(message.path("color").asText()));
+            case "canvasUpdates" -> message.path("updates")
+                    .forEach(update -> update(PixelStore.parseColor(update.path("color").asText())));
+            case "drawResponse" -> drawResponse(message.path("success").asBoolean(),
+                    DrawResponse.RATE_LIMITED.equals(message.path("reason").asText()));
+            case "imageResponse" -> {
+                Long sentAt = imagesInFlight.poll();
+                if (sentAt != null) {
+                    stats.imageLatency.recordSince(sentAt);
+                }
+                stats.imagesReceived.increment();
+            }
+            default -> {
+            }
+        }
+    }
+
+    private void handleBinary(ByteBuffer frame) {
+        int start = frame.position();
+        switch (frame.get(start)) {
+            case BinaryProtocol.OP_DRAW_RESPONSE -> {
+                byte status = frame.get(start + 1);
+                drawResponse(status == BinaryProtocol.STATUS_OK, status == BinaryProtocol.STATUS_RATE_LIMITED);
+            }
+            case BinaryProtocol.OP_UPDATE -> update(readRgb(frame, start + 9));
+            case BinaryProtocol.OP_UPDATES -> {
+                int count = frame.getInt(start + 1);
+                for (int i = 0; i < count; i++) {
+                    update(readRgb(frame, start + 5 + i * 11 + 8));
+                }
+            }
+            case BinaryProtocol.OP_SNAPSHOT_START -> {
+                pendingChunks += frame.getInt(start + 1);
+                if (pendingChunks == 0) {
+                    snapshotLoaded();
+                }
+            }
+            case BinaryProtocol.OP_SNAPSHOT_CHUNK -> {
+                if (--pendingChunks == 0) {
+                    snapshotLoaded();
+                }
+            }
+            default -> {
+            }
+        }
+    }
+
+    private static int readRgb(ByteBuffer frame, int offset) {
+        return (frame.get(offset) & 0xFF) << 16 | (frame.get(offset + 1) & 0xFF) << 8 | (frame.get(offset + 2) & 0xFF);
+    }
+
+    /* Every snapshot after the first one replaces updates the server dropped for this client. */
+    private void snapshotLoaded() {
+        if (snapshots++ > 0) {
+            stats.resyncs.increment();
+        }
+        loaded.complete(null);
+    }
+
+    private void update(int rgb) {
+        stats.updatesReceived.increment();
+        long sentAt = canvas.sentAt(rgb & 0xFFFFFF);
+        if (sentAt != 0) {
+            stats.updateLatency.recordSince(sentAt);
+        }
+    }
+
+    private void drawResponse(boolean success, boolean rateLimited) {
+        Long sentAt = drawsInFlight.poll();
+        if (sentAt != null) {
+            stats.drawResponseLatency.recordSince(sentAt);
+        }
+        if (success) {
+            stats.drawsAccepted.increment();
+            stats.updatesExpected.add(canvas.getSubscribers());
+        } else if (rateLimited) {
+            stats.drawsRateLimited.increment();
+        } else {
+            stats.drawsRejected.increment();
+        }
+    }
+}
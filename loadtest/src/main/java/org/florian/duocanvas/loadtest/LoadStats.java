@@ -0,0 +1,70 @@
+package org.florian.duocanvas.loadtest;
+
+import org.florian.duocanvas.metrics.Histogram;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms shared by every simulated client. All latencies are in nanoseconds.
+ */
+final class LoadStats {
+
+    final LongAdder connected = new LongAdder();
+    final LongAdder connectFailures = new LongAdder();
+    final LongAdder closedByServer = new LongAdder();
+    final LongAdder drawsSent = new LongAdder();
+    final LongAdder drawsAccepted = new LongAdder();
+    final LongAdder drawsRejected = new LongAdder();
+    final LongAdder drawsRateLimited = new LongAdder();
+    // Accepted draws times the clients subscribed to their canvas, i.e. the updates that should arrive.
+    final LongAdder updatesExpected = new LongAdder();
+    final LongAdder updatesReceived = new LongAdder();
+    final LongAdder resyncs = new LongAdder();
+    final LongAdder bytesReceived = new LongAdder();
+    final LongAdder sessionsCreated = new LongAdder();
+    final LongAdder imagesReceived = new LongAdder();
+
+    final Histogram connectLatency = new Histogram();
+    final Histogram drawResponseLatency = new Histogram();
+    // From sending a draw to each subscriber receiving its update, the draw's own painter included.
+    final Histogram updateLatency = new Histogram();
+    final Histogram sessionLatency = new Histogram();
+    final Histogram imageLatency = new Histogram();
+
+    void print(PrintStream out, long elapsedNanos) {
+        double seconds = elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1);
+        long expected = updatesExpected.sum();
+        long received = updatesReceived.sum();
+
+        out.printf("connections    %d open, %d failed, %d closed by the server%n",
+                connected.sum(), connectFailures.sum(), closedByServer.sum());
+        out.printf("draws          %d sent, %d accepted, %d rejected, %d rate limited%n",
+                drawsSent.sum(), drawsAccepted.sum(), drawsRejected.sum(), drawsRateLimited.sum());
+        out.printf("updates        %d expected, %d received, %d dropped, %d resyncs%n",
+                expected, received, Math.max(0, expected - received), resyncs.sum());
+        out.printf("throughput     %.0f draws/s applied, %.0f updates/s delivered, %.2f MB/s received%n",
+                drawsAccepted.sum() / seconds, received / seconds, bytesReceived.sum() / seconds / 1_000_000);
+        out.printf("creators       %d canvases created, %d images downloaded%n",
+                sessionsCreated.sum(), imagesReceived.sum());
+        out.println();
+        out.printf("%-22s %8s %9s %9s %9s %9s %9s%n", "latency (ms)", "count", "p50", "p90", "p99", "p99.9", "max");
+        printLatency(out, "connect", connectLatency);
+        printLatency(out, "draw -> response", drawResponseLatency);
+        printLatency(out, "draw -> update", updateLatency);
+        printLatency(out, "session -> code", sessionLatency);
+        printLatency(out, "image -> response", imageLatency);
+    }
+
+    private static void printLatency(PrintStream out, String name, Histogram histogram) {
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        out.printf("%-22s %8d %9.2f %9.2f %9.2f %9.2f %9.2f%n", name, snapshot.count(),
+                millis(snapshot.valueAt(0.5)), millis(snapshot.valueAt(0.9)), millis(snapshot.valueAt(0.99)),
+                millis(snapshot.valueAt(0.999)), millis(snapshot.valueAt(1.0)));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+}
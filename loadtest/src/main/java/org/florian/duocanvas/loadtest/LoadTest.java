@@ -0,0 +1,167 @@
+package org.florian.duocanvas.loadtest;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Puts a running server under load with thousands of WebSocket clients on virtual threads:
+ * viewers and painters spread over CANVASES canvases, plus creators that keep creating canvases and
+ * downloading images. Reports draw-to-update latency percentiles, dropped updates and throughput.
+ * Every setting is a -Dloadtest.* system property.
+ *
+ * <pre>
+ * mvn -f loadtest/pom.xml package
+ * java --enable-preview -Dloadtest.viewers=5000 -jar loadtest/target/loadtest.jar
+ * </pre>
+ */
+public class LoadTest {
+
+    static final URI SERVER = URI.create(System.getProperty("loadtest.url", "ws://localhost:7777/canvas"));
+    static final int CANVASES = Integer.getInteger("loadtest.canvases", 10);
+    static final int CANVAS_SIZE = Integer.getInteger("loadtest.canvasSize", 1000);
+    static final int VIEWERS = Integer.getInteger("loadtest.viewers", 2000);
+    static final int PAINTERS = Integer.getInteger("loadtest.painters", 500);
+    static final int CREATORS = Integer.getInteger("loadtest.creators", 5);
+    // Draws per second of every painter.
+    static final int PAINT_RATE = Integer.getInteger("loadtest.paintRate", 10);
+    // Pause of a creator between creating a canvas and downloading an image of a canvas under test.
+    static final int CREATE_INTERVAL_MILLIS = Integer.getInteger("loadtest.createInterval", 2000);
+    // Percentage of viewers and painters speaking JSON instead of the binary protocol.
+    static final int JSON_PERCENT = Integer.getInteger("loadtest.jsonPercent", 10);
+    // Draw limits of the canvases under test, the server caps them at duocanvas.maxDrawRate and maxDrawBurst.
+    static final int LIMIT_RATE = Integer.getInteger("loadtest.limitRate", 2 * PAINT_RATE);
+    static final int LIMIT_BURST = Integer.getInteger("loadtest.limitBurst", 20);
+    static final int DURATION_SECONDS = Integer.getInteger("loadtest.duration", 60);
+    // Time given to updates still in flight once the painters stopped.
+    static final int DRAIN_SECONDS = Integer.getInteger("loadtest.drain", 3);
+    static final int CONNECT_CONCURRENCY = Integer.getInteger("loadtest.connectConcurrency", 200);
+    static final int TIMEOUT_SECONDS = Integer.getInteger("loadtest.timeout", 30);
+
+    public static void main(String[] args) throws Exception {
+        LoadStats stats = new LoadStats();
+        ExecutorService threads = Executors.newVirtualThreadPerTaskExecutor();
+        HttpClient http = HttpClient.newBuilder().executor(threads).build();
+        List<LoadClient> clients = new ArrayList<>();
+
+        LoadClient setup = LoadClient.connect(http, SERVER, stats, null, true)
+                .get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        clients.add(setup);
+        List<LoadCanvas> canvases = new ArrayList<>();
+        for (int i = 0; i < CANVASES; i++) {
+            String code = setup.createCanvas(CANVAS_SIZE, LIMIT_RATE, LIMIT_BURST)
+                    .get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (code == null) {
+                throw new IllegalStateException("The server refused to create a canvas.");
+            }
+            canvases.add(new LoadCanvas(code, CANVAS_SIZE, CANVAS_SIZE));
+        }
+        System.out.printf("Created %d canvases on %s%n", canvases.size(), SERVER);
+
+        // Everyone joins before the first draw, so every accepted draw should reach every subscriber.
+        long rampUpStart = System.nanoTime();
+        Semaphore connecting = new Semaphore(CONNECT_CONCURRENCY);
+        List<Future<LoadClient>> joining = new ArrayList<>();
+        for (int i = 0; i < VIEWERS + PAINTERS; i++) {
+            LoadCanvas canvas = canvases.get(i % canvases.size());
+            boolean binary = i % 100 >= JSON_PERCENT;
+            joining.add(threads.submit(() -> join(http, stats, canvas, binary, connecting)));
+        }
+        List<LoadClient> painters = new ArrayList<>();
+        for (int i = 0; i < joining.size(); i++) {
+            LoadClient client = joining.get(i).get();
+            if (client != null) {
+                clients.add(client);
+                if (i >= VIEWERS) {
+                    painters.add(client);
+                }
+            }
+        }
+        System.out.printf("%d viewers and painters joined in %.1f s%n",
+                clients.size() - 1, (System.nanoTime() - rampUpStart) / 1e9);
+
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(DURATION_SECONDS);
+        for (LoadClient painter : painters) {
+            threads.submit(() -> paint(painter, end));
+        }
+        for (int i = 0; i < CREATORS; i++) {
+            LoadClient creator = LoadClient.connect(http, SERVER, stats, null, true)
+                    .get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            clients.add(creator);
+            threads.submit(() -> create(creator, canvases, end));
+        }
+        Thread.sleep(TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime()));
+        long elapsed = System.nanoTime() - start;
+        Thread.sleep(TimeUnit.SECONDS.toMillis(DRAIN_SECONDS));
+
+        System.out.println();
+        stats.print(System.out, elapsed);
+        clients.forEach(LoadClient::close);
+        threads.shutdownNow();
+        System.exit(0);
+    }
+
+    /* Null if the client could not connect or did not receive its snapshot in time. */
+    private static LoadClient join(HttpClient http, LoadStats stats, LoadCanvas canvas, boolean binary,
+                                   Semaphore connecting) throws InterruptedException {
+        connecting.acquire();
+        try {
+            LoadClient client = LoadClient.connect(http, SERVER, stats, canvas, binary)
+                    .get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            client.join().get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            canvas.addSubscriber();
+            return client;
+        } catch (Exception e) {
+            stats.connectFailures.increment();
+            return null;
+        } finally {
+            connecting.release();
+        }
+    }
+
+    /* Draws at PAINT_RATE, starting at a random offset so the painters don't draw in lockstep. */
+    private static void paint(LoadClient painter, long end) {
+        long interval = TimeUnit.SECONDS.toNanos(1) / Math.max(1, PAINT_RATE);
+        long next = System.nanoTime() + ThreadLocalRandom.current().nextLong(interval);
+        try {
+            while (next < end) {
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                painter.draw();
+                // A painter that fell behind skips the draws it missed instead of catching up in a burst.
+                next = Math.max(next + interval, System.nanoTime());
+            }
+        } catch (Exception e) {
+            // Closed by the server, already counted.
+        }
+    }
+
+    private static void create(LoadClient creator, List<LoadCanvas> canvases, long end) {
+        try {
+            while (System.nanoTime() < end) {
+                String code = creator.createCanvas(CANVAS_SIZE, LIMIT_RATE, LIMIT_BURST)
+                        .get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                if (code == null) {
+                    return;
+                }
+                Thread.sleep(CREATE_INTERVAL_MILLIS);
+                creator.requestImage(canvases.get(ThreadLocalRandom.current().nextInt(canvases.size())).code);
+            }
+        } catch (TimeoutException e) {
+            System.err.println("A creator gave up waiting for its canvas.");
+        } catch (Exception e) {
+            // Closed by the server, already counted.
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package org.florian.duocanvas;
+
+import org.apache.commons.text.RandomStringGenerator;
+import org.florian.duocanvas.db.CanvasDatabase;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Hands out canvas codes that were checked against the database ahead of time, so creating a canvas
+ * rarely has to retry its insert. A background task tops the pool up whenever it falls below half.
+ */
+class CanvasCodes {
+
+    static final int CODE_LENGTH = 8;
+    static final int POOL_SIZE = Integer.getInteger("duocanvas.codePool", 256);
+
+    // Without its own Random the generator draws from ThreadLocalRandom, so it can be shared.
+    private static final RandomStringGenerator GENERATOR = new RandomStringGenerator.Builder()
+            .withinRange('A', 'Z')
+            .get();
+    private static final BlockingQueue<String> FREE_CODES = new ArrayBlockingQueue<>(POOL_SIZE);
+    private static final AtomicBoolean REFILLING = new AtomicBoolean();
+
+    /* A free code, or an unchecked one while the pool is drained (the caller's insert then detects a collision). */
+    static String next() {
+        String code = FREE_CODES.poll();
+        if (FREE_CODES.size() < POOL_SIZE / 2 && REFILLING.compareAndSet(false, true)) {
+            WorkerPools.submit(RequestType.GENERATE_CANVAS, CanvasCodes::refill);
+        }
+        return code != null ? code : GENERATOR.generate(CODE_LENGTH);
+    }
+
+    /* One indexed lookup per code. */
+    static void refill() {
+        try {
+            while (FREE_CODES.remainingCapacity() > 0) {
+                String code = GENERATOR.generate(CODE_LENGTH);
+                if (!Main.ACTIVE_CANVAS_SESSIONS.containsKey(code) && !CanvasDatabase.canvasExists(code)) {
+                    FREE_CODES.offer(code);
+                }
+            }
+        } finally {
+            REFILLING.set(false);
+        }
+    }
+}
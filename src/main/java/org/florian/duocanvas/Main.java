@@ -3,140 +3,413 @@ package org.florian.duocanvas;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import io.javalin.Javalin;
+import io.javalin.http.Context;
 import io.javalin.websocket.WsContext;
-import org.apache.commons.text.RandomStringGenerator;
+import io.javalin.websocket.WsMessageContext;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.florian.duocanvas.canvas.Palette;
+import org.florian.duocanvas.canvas.PixelStore;
+import org.florian.duocanvas.cluster.CanvasCluster;
+import org.florian.duocanvas.cluster.SocketBus;
 import org.florian.duocanvas.db.CanvasDatabase;
+import org.florian.duocanvas.db.DrawJournal;
+import org.florian.duocanvas.history.CanvasHistory;
 import org.florian.duocanvas.json.requests.CanvasRequest;
 import org.florian.duocanvas.json.requests.DrawRequest;
 import org.florian.duocanvas.json.requests.ImageRequest;
+import org.florian.duocanvas.json.requests.RegionRequest;
+import org.florian.duocanvas.json.requests.ViewportRequest;
+import org.florian.duocanvas.json.responses.OwnedPixelsResponse;
+import org.florian.duocanvas.json.responses.PixelOwnerResponse;
+import org.florian.duocanvas.json.responses.RevertResponse;
 import org.florian.duocanvas.json.responses.SessionResponse;
+import org.florian.duocanvas.metrics.Histogram;
+import org.florian.duocanvas.metrics.Metrics;
+import org.florian.duocanvas.protocol.BinaryProtocol;
 import org.florian.duocanvas.session.CanvasSession;
+import org.florian.duocanvas.session.DrawLimiter;
+import org.florian.duocanvas.session.ImageCache;
+import org.florian.duocanvas.session.SessionCache;
 
 import java.io.IOException;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Duration;
 import java.util.*;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
-
-enum RequestType {
-    GENERATE_IMAGE, GENERATE_CANVAS, LOAD_CANVAS, DRAW_PIXEL
-}
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Main {
 
     public static Logger LOGGER = LogManager.getLogger();
     public static ObjectMapper OBJECT_MAPPER = new ObjectMapper();
     static final int BACKUP_DELAY = 30;
+    static final int EVICTION_DELAY = 10;
+    static final int KEYFRAME_DELAY = 60;
+    static final int PORT = Integer.getInteger("duocanvas.port", 7777);
+    // Draw updates are batched per canvas over this many milliseconds; 0 sends every pixel on its own.
+    public static final int UPDATE_TICK_MILLIS = Integer.getInteger("duocanvas.updateTick", 25);
+    // Size of new canvases unless the session request asks for another one, up to MAX_CANVAS_SIZE per side.
+    static final int DEFAULT_CANVAS_SIZE = Integer.getInteger("duocanvas.canvasSize", 1000);
+    public static final int MAX_CANVAS_SIZE = Integer.getInteger("duocanvas.maxCanvasSize", 4096);
+    // Codes the creation of one canvas may try before the database is assumed to be failing.
+    private static final int CODE_ATTEMPTS = 16;
+    // The /moderation endpoints want "Authorization: Bearer <token>" and are off while no token is set.
+    static final String MODERATION_TOKEN = System.getProperty("duocanvas.moderationToken");
+    // Reverted pixels nobody else drew before get this color, or the first palette color if it isn't in the palette.
+    static final int REVERT_COLOR = 0xFFFFFFFF;
 
-    public static final Set<WsContext> USERS = new HashSet<>();
+    public static final Set<WsContext> USERS = ConcurrentHashMap.newKeySet();
     private static final Map<RequestType, Class<?>> REQUEST_HANDLERS = new HashMap<>();
-    public static final Map<String, CanvasSession> ACTIVE_CANVAS_SESSIONS = new HashMap<>();
+    private static final Map<RequestType, Histogram> REQUEST_DURATIONS = new EnumMap<>(RequestType.class);
+    public static final Map<String, CanvasSession> ACTIVE_CANVAS_SESSIONS = new ConcurrentHashMap<>();
+    // sessionId -> canvasCode of clients that negotiated the binary protocol.
+    private static final Map<String, String> BINARY_CLIENTS = new ConcurrentHashMap<>();
+    private static final Map<String, SocketQueue> SOCKET_QUEUES = new ConcurrentHashMap<>();
 
-    public static void main() {
+    static {
         REQUEST_HANDLERS.put(RequestType.GENERATE_CANVAS, SessionResponse.class);
         REQUEST_HANDLERS.put(RequestType.LOAD_CANVAS, CanvasRequest.class);
         REQUEST_HANDLERS.put(RequestType.DRAW_PIXEL, DrawRequest.class);
+        REQUEST_HANDLERS.put(RequestType.DRAW_REGION, RegionRequest.class);
         REQUEST_HANDLERS.put(RequestType.GENERATE_IMAGE, ImageRequest.class);
+        REQUEST_HANDLERS.put(RequestType.UPDATE_VIEWPORT, ViewportRequest.class);
+        for (RequestType type : RequestType.values()) {
+            REQUEST_DURATIONS.put(type, Metrics.requestDuration(type.name().toLowerCase()));
+        }
+    }
 
+    public static void main() {
         if (!CanvasDatabase.initiateDatabase()) {
             return;
         }
 
-        ArrayList<String> canvasCodes = CanvasDatabase.getCanvasCodesFromDatabase();
-        if (canvasCodes != null) {
-            canvasCodes.forEach(canvasCode -> {
-                byte[] canvasBytes = CanvasDatabase.getCanvasBytesFromDatabase(canvasCode);
-                try {
-                    CanvasSession sessionBackup = CanvasDatabase.getCanvasDataFromBytes(canvasBytes);
-                    ACTIVE_CANVAS_SESSIONS.put(sessionBackup.canvasCode, sessionBackup);
-                    LOGGER.debug("Loaded: {}", canvasCode);
-                } catch (Exception e) {
-                    LOGGER.debug(e);
-                }
-            });
+        Javalin app = Javalin.create(config -> config.useVirtualThreads = true).start(PORT);
+
+        CanvasCodes.refill();
+        WorkerPools.repeat("draw-journal", Duration.ofMillis(DrawJournal.FLUSH_MILLIS), DrawJournal::flush);
+        if (System.getProperty("duocanvas.cluster.node") != null) {
+            try {
+                CanvasCluster.start(SocketBus.fromProperties());
+                Runtime.getRuntime().addShutdownHook(new Thread(CanvasCluster::leave));
+            } catch (IOException e) {
+                LOGGER.debug(e);
+                app.stop();
+                return;
+            }
         }
+        WorkerPools.repeat("canvas-backup", Duration.ofSeconds(BACKUP_DELAY), CanvasDatabase::backupCanvasData);
+        WorkerPools.repeat("canvas-eviction", Duration.ofSeconds(EVICTION_DELAY), SessionCache::evictIdleSessions);
+        WorkerPools.repeat("history-keyframes", Duration.ofSeconds(KEYFRAME_DELAY), CanvasHistory::writeKeyframes);
+
+        app.get("/metrics", ctx -> ctx.contentType("text/plain; version=0.0.4; charset=utf-8").result(Metrics.render()));
 
-        Javalin app = Javalin.create().start(7777);
+        app.get("/image/{canvasCode}", ctx -> {
+            CanvasSession session = SessionCache.get(ctx.pathParam("canvasCode"));
+            if (session == null) {
+                ctx.status(404);
+                return;
+            }
+            ImageCache.RenderedImage image = WorkerPools.call(RequestType.GENERATE_IMAGE, session::getCanvasImage);
+            String etag = "\"" + session.canvasCode + "-" + Long.toHexString(image.epoch())
+                    + "-" + image.version() + "\"";
+
+            ctx.header("Access-Control-Allow-Origin", "*");
+            ctx.header("Access-Control-Expose-Headers", "ETag");
+            ctx.header("ETag", etag);
+            ctx.header("Cache-Control", "no-cache");
+            if (etag.equals(ctx.header("If-None-Match"))) {
+                ctx.status(304);
+                return;
+            }
+            ctx.contentType("image/png").result(image.png());
+        });
 
-        ScheduledExecutorService service = Executors.newScheduledThreadPool(1);
-        service.scheduleWithFixedDelay(() -> {
+        app.get("/history/{canvasCode}/image", ctx -> {
+            CanvasSession session = SessionCache.get(ctx.pathParam("canvasCode"));
+            if (session == null) {
+                ctx.status(404);
+                return;
+            }
+            long time = ctx.queryParamAsClass("time", Long.class).getOrDefault(System.currentTimeMillis());
+
+            ctx.header("Access-Control-Allow-Origin", "*");
+            byte[] png = WorkerPools.call(RequestType.GENERATE_IMAGE,
+                    () -> ImageCache.renderPng(CanvasHistory.stateAt(session, time)));
+            ctx.contentType("image/png").result(png);
+        });
+
+        app.post("/history/{canvasCode}/timelapse", ctx -> {
+            CanvasSession session = SessionCache.get(ctx.pathParam("canvasCode"));
+            if (session == null) {
+                ctx.status(404);
+                return;
+            }
+            long from = ctx.queryParamAsClass("from", Long.class).get();
+            long to = ctx.queryParamAsClass("to", Long.class).getOrDefault(System.currentTimeMillis());
+            int frames = ctx.queryParamAsClass("frames", Integer.class)
+                    .check(count -> count > 0 && count <= CanvasHistory.MAX_TIMELAPSE_FRAMES, "Invalid frame count")
+                    .getOrDefault(100);
+            if (to < from) {
+                ctx.status(400);
+                return;
+            }
+
+            // Streamed as a zip of PNG frames, nothing is kept on the server.
+            ctx.header("Access-Control-Allow-Origin", "*");
+            ctx.header("Content-Disposition", "attachment; filename=\"" + session.canvasCode + "-timelapse.zip\"");
+            ctx.contentType("application/zip");
+            WorkerPools.call(RequestType.EXPORT_TIMELAPSE, () -> {
+                CanvasHistory.writeTimelapse(session, from, to, frames, ctx.outputStream());
+                return null;
+            });
+        });
+
+        app.get("/moderation/{canvasCode}/pixel", ctx -> {
+            CanvasSession session = moderatedSession(ctx);
+            if (session == null) {
+                return;
+            }
+            PixelStore pixels = session.getCanvasData();
+            int x = ctx.queryParamAsClass("x", Integer.class)
+                    .check(value -> value >= 0 && value < pixels.getWidth(), "Invalid x").get();
+            int y = ctx.queryParamAsClass("y", Integer.class)
+                    .check(value -> value >= 0 && value < pixels.getHeight(), "Invalid y").get();
+            ctx.contentType("application/json").result(OBJECT_MAPPER.writeValueAsString(new PixelOwnerResponse(
+                    "pixelOwner", x, y,
+                    pixels.isPainted(x, y) ? PixelStore.formatColor(pixels.getColor(x, y)) : null,
+                    pixels.getOwner(x, y))));
+        });
+
+        app.get("/moderation/{canvasCode}/owners/{owner}", ctx -> {
+            CanvasSession session = moderatedSession(ctx);
+            if (session == null) {
+                return;
+            }
+            String owner = ctx.pathParam("owner");
+            ctx.contentType("application/json").result(OBJECT_MAPPER.writeValueAsString(
+                    new OwnedPixelsResponse("ownedPixels", owner, session.getPixelsOf(owner))));
+        });
+
+        app.post("/moderation/{canvasCode}/owners/{owner}/revert", ctx -> {
+            CanvasSession session = moderatedSession(ctx);
+            if (session == null) {
+                return;
+            }
+            Palette palette = session.getCanvasData().getPalette();
+            String color = ctx.queryParam("color");
+            int argb;
             try {
-                CanvasDatabase.backupCanvasData();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+                argb = color != null ? PixelStore.parseColor(color) : REVERT_COLOR;
+            } catch (IllegalArgumentException e) {
+                ctx.status(400);
+                return;
             }
-        }, BACKUP_DELAY, BACKUP_DELAY, TimeUnit.SECONDS);
+            if (palette != null && !palette.contains(argb)) {
+                if (color != null) {
+                    ctx.status(400);
+                    return;
+                }
+                argb = palette.colorAt(0);
+            }
+            String owner = ctx.pathParam("owner");
+            ctx.contentType("application/json").result(OBJECT_MAPPER.writeValueAsString(
+                    new RevertResponse("revertResponse", owner, session.revertParticipant(owner, argb))));
+        });
 
         app.ws("/canvas", ws -> {
             ws.onConnect(USERS::add);
-            ws.onMessage(ctx -> {
-                String requestedData = ctx.message();
-                JsonNode jsonData = OBJECT_MAPPER.readTree(requestedData);
-                if (jsonData.isEmpty()) {
-                    return;
-                }
-                String requestType = jsonData.get("requestType").asText();
-                String canvasCode = jsonData.get("canvasCode").asText();
+            ws.onMessage(Main::handleMessage);
 
-                if (requestType.equals("none") && canvasCode.equals("session")) {
+            ws.onBinaryMessage(ctx -> {
+                long start = System.nanoTime();
+                ByteBuffer frame = ByteBuffer.wrap(ctx.data(), ctx.offset(), ctx.length()).slice();
+                if (!frame.hasRemaining() || frame.get(0) != BinaryProtocol.OP_DRAW) {
                     return;
                 }
-                switch (requestType) {
-                    case "session":
-                        ctx.send(OBJECT_MAPPER.writeValueAsString(new SessionResponse(
-                                "sessionResponse", generateCanvasSession(ctx.sessionId())))
-                        );
-                        break;
-                    case "canvas":
-                        ACTIVE_CANVAS_SESSIONS.get(canvasCode).handlePacket(
-                                ctx,
-                                OBJECT_MAPPER.treeToValue(jsonData, REQUEST_HANDLERS.get(RequestType.LOAD_CANVAS))
-                        );
-                        break;
-                    case "draw":
-                        ACTIVE_CANVAS_SESSIONS.get(canvasCode).handlePacket(
-                                ctx,
-                                OBJECT_MAPPER.treeToValue(jsonData, REQUEST_HANDLERS.get(RequestType.DRAW_PIXEL))
-                        );
-                        break;
-                    case "image":
-                        ACTIVE_CANVAS_SESSIONS.get(canvasCode).handlePacket(
-                                ctx,
-                                OBJECT_MAPPER.treeToValue(jsonData, REQUEST_HANDLERS.get(RequestType.GENERATE_IMAGE))
-                        );
-                        break;
+                String canvasCode = BINARY_CLIENTS.get(ctx.sessionId());
+                CanvasSession session = SessionCache.get(canvasCode);
+                if (session == null) {
+                    ctx.send(BinaryProtocol.encodeDrawResponse(false));
+                    return;
                 }
+                session.handleBinaryDraw(ctx, frame);
+                REQUEST_DURATIONS.get(RequestType.DRAW_PIXEL).recordSince(start);
             });
 
             ws.onClose(ctx -> {
+                // Also clears rate limit buckets of clients that drew without joining.
                 for (CanvasSession session : ACTIVE_CANVAS_SESSIONS.values()) {
-                    String participantUUID = ctx.sessionId();
-                    if (session.getParticipants().contains(participantUUID)) {
-                        session.removeParticipant(participantUUID);
-                    }
+                    session.removeParticipant(ctx.sessionId());
                 }
+                BINARY_CLIENTS.remove(ctx.sessionId());
+                SOCKET_QUEUES.remove(ctx.sessionId());
                 USERS.remove(ctx);
             });
         });
     }
 
-    private static String generateCanvasSession(String creatorUUID) throws IOException {
-        RandomStringGenerator generator = new RandomStringGenerator.Builder().withinRange('A', 'Z').get();
-        String canvasCode = "";
-        boolean isUniqueCanvasCode = false;
+    private static SocketQueue socketQueue(WsContext ctx) {
+        return SOCKET_QUEUES.computeIfAbsent(ctx.sessionId(), sessionId -> new SocketQueue());
+    }
 
-        while (!isUniqueCanvasCode) {
-            canvasCode = generator.generate(8);
-            isUniqueCanvasCode = !ACTIVE_CANVAS_SESSIONS.containsKey(canvasCode);
+    /* The canvas of a moderation request, null once the response status says why there is none. */
+    private static CanvasSession moderatedSession(Context ctx) {
+        String authorization = ctx.header("Authorization");
+        if (MODERATION_TOKEN == null || authorization == null || !MessageDigest.isEqual(
+                ("Bearer " + MODERATION_TOKEN).getBytes(StandardCharsets.UTF_8),
+                authorization.getBytes(StandardCharsets.UTF_8))) {
+            ctx.status(403);
+            return null;
+        }
+        CanvasSession session = SessionCache.get(ctx.pathParam("canvasCode"));
+        if (session == null) {
+            ctx.status(404);
+            return null;
+        }
+        // Only the owning node writes the canvas, a replica would revert pixels the owner never hears of.
+        if (session.getReplication().isReplica()) {
+            ctx.status(409);
+            return null;
         }
-        CanvasSession newCanvasSession = new CanvasSession(canvasCode, creatorUUID);
-        ACTIVE_CANVAS_SESSIONS.put(canvasCode, newCanvasSession);
-        CanvasDatabase.addCanvasToDatabase(newCanvasSession); //
+        return session;
+    }
 
-        LOGGER.debug("Saved: {}", canvasCode);
-        return canvasCode;
+    /* Dispatches one JSON request of the canvas socket. */
+    public static void handleMessage(WsMessageContext ctx) throws IOException {
+        long start = System.nanoTime();
+        String requestedData = ctx.message();
+        JsonNode jsonData = OBJECT_MAPPER.readTree(requestedData);
+        if (jsonData.isEmpty()) {
+            return;
+        }
+        String requestType = jsonData.get("requestType").asText();
+        String canvasCode = jsonData.get("canvasCode").asText();
+
+        if (requestType.equals("none") && canvasCode.equals("session")) {
+            return;
+        }
+        switch (requestType) {
+            case "session":
+                int width = Math.clamp(jsonData.path("width").asInt(DEFAULT_CANVAS_SIZE), 1, MAX_CANVAS_SIZE);
+                int height = Math.clamp(jsonData.path("height").asInt(DEFAULT_CANVAS_SIZE), 1, MAX_CANVAS_SIZE);
+                int drawRate = jsonData.path("drawRate").asInt(DrawLimiter.DEFAULT_RATE);
+                int drawBurst = jsonData.path("drawBurst").asInt(DrawLimiter.DEFAULT_BURST);
+                // Only the server's own default may be 0, which turns the limit off.
+                boolean clientRate = jsonData.has("drawRate");
+                boolean clientBurst = jsonData.has("drawBurst");
+                List<String> paletteColors = new ArrayList<>();
+                jsonData.path("palette").forEach(color -> paletteColors.add(color.asText()));
+                Palette palette;
+                try {
+                    palette = Palette.parse(paletteColors);
+                    if ((clientRate && drawRate < 1) || (clientBurst && drawBurst < 1)) {
+                        throw new IllegalArgumentException("Draw limits must be at least 1: " + drawRate + ", " + drawBurst);
+                    }
+                } catch (IllegalArgumentException e) {
+                    LOGGER.debug(e);
+                    ctx.send(OBJECT_MAPPER.writeValueAsString(new SessionResponse("sessionResponse", null)));
+                    break;
+                }
+                // The insert claiming the code is a database write, it runs off the socket thread.
+                WorkerPools.submit(RequestType.GENERATE_CANVAS, () -> ctx.send(OBJECT_MAPPER.writeValueAsString(
+                        new SessionResponse("sessionResponse",
+                                generateCanvasSession(ctx.sessionId(), width, height, palette, drawRate, drawBurst)))
+                ));
+                REQUEST_DURATIONS.get(RequestType.GENERATE_CANVAS).recordSince(start);
+                break;
+            case "canvas":
+                if (BinaryProtocol.PROTOCOL_NAME.equals(jsonData.path("protocol").asText())) {
+                    BINARY_CLIENTS.put(ctx.sessionId(), canvasCode);
+                }
+                Object canvasRequest = OBJECT_MAPPER.treeToValue(
+                        jsonData, REQUEST_HANDLERS.get(RequestType.LOAD_CANVAS)
+                );
+                socketQueue(ctx).join(() -> {
+                    CanvasSession session = SessionCache.get(canvasCode);
+                    if (session != null) {
+                        session.handlePacket(ctx, canvasRequest);
+                    }
+                });
+                REQUEST_DURATIONS.get(RequestType.LOAD_CANVAS).recordSince(start);
+                break;
+            case "draw":
+                CanvasSession drawSession = SessionCache.get(canvasCode);
+                if (drawSession != null) {
+                    drawSession.handlePacket(
+                            ctx,
+                            OBJECT_MAPPER.treeToValue(jsonData, REQUEST_HANDLERS.get(RequestType.DRAW_PIXEL))
+                    );
+                }
+                REQUEST_DURATIONS.get(RequestType.DRAW_PIXEL).recordSince(start);
+                break;
+            case "fill", "floodFill", "line", "stamp":
+                Object regionRequest = OBJECT_MAPPER.treeToValue(
+                        jsonData, REQUEST_HANDLERS.get(RequestType.DRAW_REGION)
+                );
+                WorkerPools.submit(RequestType.DRAW_REGION, () -> {
+                    CanvasSession session = SessionCache.get(canvasCode);
+                    if (session != null) {
+                        session.handlePacket(ctx, regionRequest);
+                    }
+                });
+                REQUEST_DURATIONS.get(RequestType.DRAW_REGION).recordSince(start);
+                break;
+            case "viewport":
+                Object viewportRequest = OBJECT_MAPPER.treeToValue(
+                        jsonData, REQUEST_HANDLERS.get(RequestType.UPDATE_VIEWPORT)
+                );
+                // Runs after the join that registers the subscriber, and after earlier moves.
+                socketQueue(ctx).viewport(() -> {
+                    CanvasSession session = SessionCache.get(canvasCode);
+                    if (session != null) {
+                        session.handlePacket(ctx, viewportRequest);
+                    }
+                });
+                REQUEST_DURATIONS.get(RequestType.UPDATE_VIEWPORT).recordSince(start);
+                break;
+            case "image":
+                Object imageRequest = OBJECT_MAPPER.treeToValue(
+                        jsonData, REQUEST_HANDLERS.get(RequestType.GENERATE_IMAGE)
+                );
+                WorkerPools.submit(RequestType.GENERATE_IMAGE, () -> {
+                    CanvasSession session = SessionCache.get(canvasCode);
+                    if (session != null) {
+                        session.handlePacket(ctx, imageRequest);
+                    }
+                });
+                REQUEST_DURATIONS.get(RequestType.GENERATE_IMAGE).recordSince(start);
+                break;
+        }
+    }
+
+    /* Null if no code could be claimed. */
+    private static String generateCanvasSession(String creatorUUID, int width, int height, Palette palette,
+                                                int drawRate, int drawBurst) throws IOException {
+        for (int attempt = 0; attempt < CODE_ATTEMPTS; attempt++) {
+            String canvasCode = CanvasCodes.next();
+            if (ACTIVE_CANVAS_SESSIONS.containsKey(canvasCode)) {
+                continue;
+            }
+            CanvasSession candidate = new CanvasSession(canvasCode, creatorUUID, width, height, palette);
+            candidate.getDrawLimiter().setClientLimits(drawRate, drawBurst);
+            // The insert claims the code before it is handed out: the unique index rejects a code
+            // another canvas holds, and only canvases that were inserted get registered and backed up.
+            if (!CanvasDatabase.addCanvasToDatabase(candidate)) {
+                continue;
+            }
+            if (CanvasCluster.isOwner(canvasCode)) {
+                ACTIVE_CANVAS_SESSIONS.putIfAbsent(canvasCode, candidate);
+                LOGGER.debug("Created: {}", canvasCode);
+            } else {
+                // Another node serves it and loads it from the database.
+                LOGGER.debug("Created: {} for {}", canvasCode, CanvasCluster.ownerOf(canvasCode));
+            }
+            return canvasCode;
+        }
+        LOGGER.debug("Gave up creating a canvas after {} taken codes.", CODE_ATTEMPTS);
+        return null;
     }
 }
\ No newline at end of file
@@ -0,0 +1,5 @@
+package org.florian.duocanvas;
+
+enum RequestType {
+    GENERATE_IMAGE, GENERATE_CANVAS, LOAD_CANVAS, DRAW_PIXEL, DRAW_REGION, UPDATE_VIEWPORT, EXPORT_TIMELAPSE
+}
@@ -0,0 +1,60 @@
+package org.florian.duocanvas;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Runs the canvas join and viewport moves of one socket one after another, in arrival order.
+ * A viewport move waiting behind another one replaces it, only the latest viewport matters to the client.
+ */
+class SocketQueue {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private record Entry(WorkerPools.Task task, boolean viewport) {
+    }
+
+    private final Deque<Entry> pending = new ArrayDeque<>();
+    private boolean running;
+
+    void join(WorkerPools.Task task) {
+        enqueue(new Entry(task, false));
+    }
+
+    void viewport(WorkerPools.Task task) {
+        enqueue(new Entry(task, true));
+    }
+
+    private synchronized void enqueue(Entry entry) {
+        if (entry.viewport() && !pending.isEmpty() && pending.peekLast().viewport()) {
+            pending.removeLast();
+        }
+        pending.addLast(entry);
+        if (!running) {
+            running = true;
+            // Newly visible tiles may have to be encoded, so this shares the canvas load limit.
+            WorkerPools.submit(RequestType.LOAD_CANVAS, this::drain);
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            Entry entry;
+            synchronized (this) {
+                entry = pending.pollFirst();
+                if (entry == null) {
+                    running = false;
+                    return;
+                }
+            }
+            try {
+                entry.task().run();
+            } catch (Exception e) {
+                LOGGER.debug(e);
+            }
+        }
+    }
+}
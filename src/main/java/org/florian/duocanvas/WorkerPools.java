@@ -0,0 +1,104 @@
+package org.florian.duocanvas;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.florian.duocanvas.metrics.Histogram;
+import org.florian.duocanvas.metrics.Metrics;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs blocking and CPU-heavy work on virtual threads, so it never stalls the socket threads.
+ * Each request type may run at most "duocanvas.limit.<type>" tasks at once, excess tasks wait.
+ */
+public class WorkerPools {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final ExecutorService VIRTUAL_THREADS = Executors.newVirtualThreadPerTaskExecutor();
+    private static final Map<RequestType, Semaphore> LIMITS = new EnumMap<>(RequestType.class);
+    private static final Map<RequestType, Histogram> TASK_DURATIONS = new EnumMap<>(RequestType.class);
+
+    static {
+        LIMITS.put(RequestType.GENERATE_IMAGE, new Semaphore(Integer.getInteger("duocanvas.limit.image", 4)));
+        LIMITS.put(RequestType.GENERATE_CANVAS, new Semaphore(Integer.getInteger("duocanvas.limit.session", 8)));
+        LIMITS.put(RequestType.LOAD_CANVAS, new Semaphore(Integer.getInteger("duocanvas.limit.canvas", 16)));
+        LIMITS.put(RequestType.DRAW_REGION, new Semaphore(Integer.getInteger("duocanvas.limit.region", 4)));
+        LIMITS.put(RequestType.EXPORT_TIMELAPSE, new Semaphore(Integer.getInteger("duocanvas.limit.timelapse", 1)));
+        LIMITS.forEach((type, limit) -> {
+            String label = type.name().toLowerCase();
+            TASK_DURATIONS.put(type, Metrics.taskDuration(label));
+            Metrics.tasksWaiting(label, limit::getQueueLength);
+        });
+    }
+
+    public interface Task {
+        void run() throws Exception;
+    }
+
+    static void submit(RequestType type, Task task) {
+        Semaphore limit = LIMITS.get(type);
+        Histogram duration = TASK_DURATIONS.get(type);
+        long submitted = System.nanoTime();
+        VIRTUAL_THREADS.execute(() -> {
+            try {
+                limit.acquire();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                task.run();
+            } catch (Exception e) {
+                LOGGER.debug(e);
+            } finally {
+                limit.release();
+                duration.recordSince(submitted);
+            }
+        });
+    }
+
+    /* Runs the task on the calling virtual thread within the type's limit, for HTTP handlers that wait on it. */
+    static <T> T call(RequestType type, Callable<T> task) throws Exception {
+        Semaphore limit = LIMITS.get(type);
+        long submitted = System.nanoTime();
+        limit.acquire();
+        try {
+            return task.call();
+        } finally {
+            limit.release();
+            TASK_DURATIONS.get(type).recordSince(submitted);
+        }
+    }
+
+    public static void schedule(Duration delay, Task task) {
+        VIRTUAL_THREADS.execute(() -> {
+            try {
+                Thread.sleep(delay);
+                task.run();
+            } catch (InterruptedException ignored) {
+            } catch (Exception e) {
+                LOGGER.debug(e);
+            }
+        });
+    }
+
+    public static void repeat(String name, Duration delay, Task task) {
+        Thread.ofVirtual().name(name).start(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    Thread.sleep(delay);
+                    task.run();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    LOGGER.debug(e);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,47 @@
+package org.florian.duocanvas.canvas;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The owners that painted each tile, so moderation queries only scan the tiles an owner touched.
+ * Every tile keeps a sorted array of owner ids, swapped for a copy when an owner paints there for the first time,
+ * so the draws after that only read it. Owners are never taken out: a tile where an owner lost all its pixels
+ * is scanned for nothing, readers check the cells.
+ */
+final class OwnerIndex {
+
+    private final AtomicReferenceArray<int[]> tileOwners;
+
+    OwnerIndex(int tileCount) {
+        this.tileOwners = new AtomicReferenceArray<>(tileCount);
+    }
+
+    void add(int tile, int ownerId) {
+        int[] owners = tileOwners.get(tile);
+        while (true) {
+            int position = owners == null ? -1 : Arrays.binarySearch(owners, ownerId);
+            if (position >= 0) {
+                return;
+            }
+            position = -position - 1;
+            int size = owners == null ? 0 : owners.length;
+            int[] added = new int[size + 1];
+            if (owners != null) {
+                System.arraycopy(owners, 0, added, 0, position);
+                System.arraycopy(owners, position, added, position + 1, size - position);
+            }
+            added[position] = ownerId;
+            int[] witness = tileOwners.compareAndExchange(tile, owners, added);
+            if (witness == owners) {
+                return;
+            }
+            owners = witness;
+        }
+    }
+
+    boolean contains(int tile, int ownerId) {
+        int[] owners = tileOwners.get(tile);
+        return owners != null && Arrays.binarySearch(owners, ownerId) >= 0;
+    }
+}
@@ -0,0 +1,79 @@
+package org.florian.duocanvas.canvas;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Fixed set of colors a canvas can be limited to.
+ * Draws with other colors are rejected, and the canvas is persisted and rendered with one byte per pixel:
+ * the color's index + 1, 0 for unpainted.
+ */
+public final class Palette {
+
+    public static final int MAX_COLORS = 255;
+
+    private final int[] colors;
+    // Sorted copy for lookups, with the index each color has in colors.
+    private final int[] sortedColors;
+    private final int[] sortedIndexes;
+
+    public Palette(int[] colors) {
+        if (colors.length == 0 || colors.length > MAX_COLORS) {
+            throw new IllegalArgumentException("A palette holds 1 to " + MAX_COLORS + " colors.");
+        }
+        this.colors = colors.clone();
+        Integer[] order = new Integer[colors.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Integer.compare(colors[a], colors[b]));
+        this.sortedColors = new int[colors.length];
+        this.sortedIndexes = new int[colors.length];
+        for (int i = 0; i < order.length; i++) {
+            sortedColors[i] = colors[order[i]];
+            sortedIndexes[i] = order[i];
+            if (i > 0 && sortedColors[i] == sortedColors[i - 1]) {
+                throw new IllegalArgumentException("Duplicate palette color: " + PixelStore.formatColor(sortedColors[i]));
+            }
+        }
+    }
+
+    /* Null for a missing or empty list, i.e. a canvas without palette. */
+    public static Palette parse(List<String> hexColors) {
+        if (hexColors == null || hexColors.isEmpty()) {
+            return null;
+        }
+        int[] colors = new int[hexColors.size()];
+        for (int i = 0; i < colors.length; i++) {
+            colors[i] = PixelStore.parseColor(hexColors.get(i));
+        }
+        return new Palette(colors);
+    }
+
+    public int size() {
+        return colors.length;
+    }
+
+    public int colorAt(int index) {
+        return colors[index];
+    }
+
+    /* The color's index, or -1 if it isn't part of the palette. */
+    public int indexOf(int argb) {
+        int position = Arrays.binarySearch(sortedColors, argb);
+        return position < 0 ? -1 : sortedIndexes[position];
+    }
+
+    public boolean contains(int argb) {
+        return Arrays.binarySearch(sortedColors, argb) >= 0;
+    }
+
+    public List<String> format() {
+        List<String> hexColors = new ArrayList<>(colors.length);
+        for (int color : colors) {
+            hexColors.add(PixelStore.formatColor(color));
+        }
+        return hexColors;
+    }
+}
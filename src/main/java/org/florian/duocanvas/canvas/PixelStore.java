@@ -0,0 +1,392 @@
+package org.florian.duocanvas.canvas;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compact pixel storage for a canvas.
+ * Each pixel is one long holding the owner id (high half) and the packed ARGB color
+ * (low half, 0 = unpainted). Owner ids point into a side table of interned names.
+ * A pixel is written with a single atomic store, so draws never lock and readers
+ * always see a matching color and owner.
+ * Pixels live in square tiles of TILE_SIZE that are only allocated on their first draw,
+ * so memory grows with the painted area instead of the canvas size.
+ * A canvas with a palette only takes the palette's colors, see Palette.
+ * The OwnerIndex lists the owners of every tile, a draw only writes to it when its owner is new to the tile.
+ */
+public class PixelStore {
+
+    public static final int EMPTY = 0;
+    public static final int TILE_SIZE = Integer.getInteger("duocanvas.tileSize", 128);
+    private static final int NO_OWNER = 0;
+    private static final VarHandle CELLS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final int width;
+    private final int height;
+    private final int tilesX;
+    private final int tilesY;
+    private final AtomicReferenceArray<long[]> tiles;
+    private final Palette palette;
+
+    private final Map<String, Integer> ownerIds = new ConcurrentHashMap<>();
+    private volatile String[] ownerNames = new String[16]; // id 0 is reserved for "no owner"
+    private int ownerCount = 1;
+    private final LongAdder version = new LongAdder();
+    private final OwnerIndex ownerIndex;
+
+    public interface PixelVisitor {
+        void visit(int x, int y, int argb);
+    }
+
+    public PixelStore(int width, int height) {
+        this(width, height, null);
+    }
+
+    public PixelStore(int width, int height, Palette palette) {
+        this.width = width;
+        this.height = height;
+        this.palette = palette;
+        this.tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        this.tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        this.tiles = new AtomicReferenceArray<>(tilesX * tilesY);
+        this.ownerIndex = new OwnerIndex(tilesX * tilesY);
+    }
+
+    /* Empty store with the given owner table, to be filled through restorePixel. */
+    public static PixelStore restore(int width, int height, Palette palette, List<String> ownerNames) {
+        PixelStore store = new PixelStore(width, height, palette);
+        ownerNames.forEach(store::internOwner);
+        return store;
+    }
+
+    /* Writes a pixel with an owner id of the restored owner table. Unpainted pixels are skipped. */
+    public void restorePixel(int x, int y, int argb, int ownerId) {
+        if (argb != EMPTY) {
+            writeCell(tileFor(x, y, true), tileOf(x, y), cellOf(x, y), pack(argb, ownerId));
+        }
+    }
+
+    public void setPixel(int x, int y, int argb, String owner) {
+        long[] tile = tileFor(x, y, true);
+        writeCell(tile, tileOf(x, y), cellOf(x, y), pack(argb, internOwner(owner)));
+        version.increment();
+    }
+
+    /* Writes every painted pixel of the region in one pass and returns how many there were. */
+    public int paint(Region region, String owner) {
+        int ownerId = internOwner(owner);
+        int painted = 0;
+        for (int row = 0; row < region.height(); row++) {
+            int y = region.y() + row;
+            long[] tile = null;
+            int tileIndex = -1;
+            for (int column = 0; column < region.width(); column++) {
+                int argb = region.colors()[row * region.width() + column];
+                if (argb == EMPTY) {
+                    continue;
+                }
+                int x = region.x() + column;
+                int index = tileOf(x, y);
+                if (index != tileIndex) {
+                    tile = tileFor(x, y, true);
+                    tileIndex = index;
+                }
+                writeCell(tile, tileIndex, cellOf(x, y), pack(argb, ownerId));
+                painted++;
+            }
+        }
+        version.increment();
+        return painted;
+    }
+
+    /* Writes the pixel only while expectedOwner still holds it, a draw that got there first is kept. */
+    public boolean replaceIfOwnedBy(int x, int y, String expectedOwner, int argb, String owner) {
+        Integer expectedId = expectedOwner == null ? null : ownerIds.get(expectedOwner);
+        long[] tile = tileFor(x, y, false);
+        if (expectedId == null || tile == null) {
+            return false;
+        }
+        int cell = cellOf(x, y);
+        int ownerId = internOwner(owner);
+        long value = pack(argb, ownerId);
+        indexOwner(tileOf(x, y), ownerId);
+        long current;
+        do {
+            current = (long) CELLS.getAcquire(tile, cell);
+            if ((int) current == EMPTY || (int) (current >>> 32) != expectedId) {
+                return false;
+            }
+        } while (!CELLS.compareAndSet(tile, cell, current, value));
+        version.increment();
+        return true;
+    }
+
+    /*
+     * Overwrites every pixel with the one of source, which must have the same size and must not change meanwhile.
+     * Tiles painted here but not in source are cleared instead of freed, a concurrent writer may still hold them.
+     */
+    public void copyFrom(PixelStore source) {
+        if (source.width != width || source.height != height) {
+            throw new IllegalArgumentException("Canvas sizes differ.");
+        }
+        String[] sourceOwners = source.ownerNames;
+        int[] ownerMapping = new int[sourceOwners.length];
+        Arrays.fill(ownerMapping, -1);
+        ownerMapping[NO_OWNER] = NO_OWNER;
+
+        for (int index = 0; index < tiles.length(); index++) {
+            long[] sourceTile = source.tiles.get(index);
+            long[] tile = sourceTile == null ? tiles.get(index) : allocateTile(index);
+            if (tile == null) {
+                continue;
+            }
+            for (int cell = 0; cell < tile.length; cell++) {
+                long sourceCell = sourceTile == null ? EMPTY : (long) CELLS.getAcquire(sourceTile, cell);
+                int sourceOwner = (int) (sourceCell >>> 32);
+                if (ownerMapping[sourceOwner] < 0) {
+                    ownerMapping[sourceOwner] = internOwner(sourceOwners[sourceOwner]);
+                }
+                if ((int) sourceCell != EMPTY) {
+                    indexOwner(index, ownerMapping[sourceOwner]);
+                }
+                CELLS.setRelease(tile, cell, pack((int) sourceCell, ownerMapping[sourceOwner]));
+            }
+        }
+        version.increment();
+    }
+
+    /* Visits the painted pixels the owner holds, scanning only the tiles the owner index lists for them. */
+    public void forEachOwnedBy(String owner, PixelVisitor visitor) {
+        Integer ownerId = owner == null ? null : ownerIds.get(owner);
+        if (ownerId == null) {
+            return;
+        }
+        for (int tileIndex = 0; tileIndex < tiles.length(); tileIndex++) {
+            long[] tile = tiles.get(tileIndex);
+            if (tile == null || !ownerIndex.contains(tileIndex, ownerId)) {
+                continue;
+            }
+            int originX = (tileIndex % tilesX) * TILE_SIZE;
+            int originY = (tileIndex / tilesX) * TILE_SIZE;
+            for (int cell = 0; cell < tile.length; cell++) {
+                long value = (long) CELLS.getAcquire(tile, cell);
+                if ((int) value != EMPTY && (int) (value >>> 32) == ownerId) {
+                    visitor.visit(originX + cell % TILE_SIZE, originY + cell / TILE_SIZE, (int) value);
+                }
+            }
+        }
+    }
+
+    /* Null if every color is allowed. */
+    public Palette getPalette() {
+        return palette;
+    }
+
+    /* Changes on every write, used to invalidate cached encodings. */
+    public long getVersion() {
+        return version.sum();
+    }
+
+    public int getColor(int x, int y) {
+        return (int) getCell(x, y);
+    }
+
+    public String getOwner(int x, int y) {
+        return ownerNames[(int) (getCell(x, y) >>> 32)];
+    }
+
+    public boolean isPainted(int x, int y) {
+        return getColor(x, y) != EMPTY;
+    }
+
+    public boolean contains(int x, int y) {
+        return x >= 0 && y >= 0 && x < width && y < height;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getTilesX() {
+        return tilesX;
+    }
+
+    public int getTilesY() {
+        return tilesY;
+    }
+
+    public int getTileCount() {
+        return tilesX * tilesY;
+    }
+
+    /* Tile index of a pixel, tiles are numbered row-major. */
+    public int tileOf(int x, int y) {
+        return (y / TILE_SIZE) * tilesX + x / TILE_SIZE;
+    }
+
+    public boolean isTileAllocated(int tile) {
+        return tiles.get(tile) != null;
+    }
+
+    public TileRange getAllTiles() {
+        return new TileRange(0, 0, tilesX - 1, tilesY - 1);
+    }
+
+    /* Tiles covering the given pixel rectangle, clipped to the canvas. */
+    public TileRange tilesIn(int x, int y, int rectWidth, int rectHeight) {
+        int minX = Math.max(0, x);
+        int minY = Math.max(0, y);
+        int maxX = Math.min(width, x + rectWidth) - 1;
+        int maxY = Math.min(height, y + rectHeight) - 1;
+        if (maxX < minX || maxY < minY) {
+            return TileRange.EMPTY;
+        }
+        return new TileRange(minX / TILE_SIZE, minY / TILE_SIZE, maxX / TILE_SIZE, maxY / TILE_SIZE);
+    }
+
+    /*
+     * Copies one tile for persistence, row-major with TILE_SIZE columns. Cells outside the canvas stay 0.
+     * Every pixel is a consistent (color, owner) pair, draws that race the copy are picked up by
+     * the next backup through the dirty flag. Returns false if the tile was never painted.
+     */
+    public boolean copyTile(int tile, int[] colors, int[] owners) {
+        long[] cells = tiles.get(tile);
+        if (cells == null) {
+            return false;
+        }
+        for (int i = 0; i < cells.length; i++) {
+            long cell = (long) CELLS.getAcquire(cells, i);
+            colors[i] = (int) cell;
+            owners[i] = (int) (cell >>> 32);
+        }
+        return true;
+    }
+
+    /* Interned owner names, index = owner id. Index 0 is always null. Read it after copying tiles. */
+    public List<String> getOwnerTable() {
+        synchronized (ownerIds) {
+            return Arrays.asList(Arrays.copyOf(ownerNames, ownerCount));
+        }
+    }
+
+    private int internOwner(String owner) {
+        if (owner == null) {
+            return NO_OWNER;
+        }
+        Integer id = ownerIds.get(owner);
+        if (id != null) {
+            return id;
+        }
+        synchronized (ownerIds) {
+            id = ownerIds.get(owner);
+            if (id == null) {
+                String[] names = ownerNames;
+                if (ownerCount == names.length) {
+                    names = Arrays.copyOf(names, names.length * 2);
+                }
+                id = ownerCount++;
+                names[id] = owner;
+                ownerNames = names;
+                ownerIds.put(owner, id);
+            }
+            return id;
+        }
+    }
+
+    /* The owner is listed before the pixel shows up, so a query that sees the pixel also scans its tile. */
+    private void writeCell(long[] tile, int tileIndex, int cell, long value) {
+        indexOwner(tileIndex, (int) (value >>> 32));
+        CELLS.setRelease(tile, cell, value);
+    }
+
+    private void indexOwner(int tileIndex, int ownerId) {
+        if (ownerId != NO_OWNER) {
+            ownerIndex.add(tileIndex, ownerId);
+        }
+    }
+
+    private static long pack(int argb, int ownerId) {
+        return ((long) ownerId << 32) | (argb & 0xFFFFFFFFL);
+    }
+
+    private long getCell(int x, int y) {
+        long[] tile = tileFor(x, y, false);
+        return tile == null ? EMPTY : (long) CELLS.getAcquire(tile, cellOf(x, y));
+    }
+
+    private long[] tileFor(int x, int y, boolean allocate) {
+        if (x < 0 || y < 0 || x >= width || y >= height) {
+            throw new IndexOutOfBoundsException("Pixel (" + x + "," + y + ") is outside of the canvas.");
+        }
+        int index = tileOf(x, y);
+        return allocate ? allocateTile(index) : tiles.get(index);
+    }
+
+    private long[] allocateTile(int index) {
+        long[] tile = tiles.get(index);
+        if (tile == null) {
+            long[] created = new long[TILE_SIZE * TILE_SIZE];
+            tile = tiles.compareAndExchange(index, null, created);
+            if (tile == null) {
+                tile = created;
+            }
+        }
+        return tile;
+    }
+
+    private static int cellOf(int x, int y) {
+        return (y % TILE_SIZE) * TILE_SIZE + x % TILE_SIZE;
+    }
+
+    /* Parses #rgb or #rrggbb, the # being optional, into opaque ARGB without allocating. */
+    public static int parseColor(String hexColor) {
+        int start = hexColor.startsWith("#") ? 1 : 0;
+        int digits = hexColor.length() - start;
+        if (digits != 3 && digits != 6) {
+            throw new IllegalArgumentException("Invalid color: " + hexColor);
+        }
+        int rgb = 0;
+        for (int i = start; i < hexColor.length(); i++) {
+            int digit = hexDigit(hexColor.charAt(i));
+            if (digit < 0) {
+                throw new IllegalArgumentException("Invalid color: " + hexColor);
+            }
+            rgb = digits == 3 ? rgb << 8 | digit << 4 | digit : rgb << 4 | digit;
+        }
+        return 0xFF000000 | rgb;
+    }
+
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+    public static String formatColor(int argb) {
+        char[] hex = new char[7];
+        hex[0] = '#';
+        for (int i = 6; i > 0; i--) {
+            hex[i] = HEX_DIGITS[argb & 0xF];
+            argb >>>= 4;
+        }
+        return new String(hex);
+    }
+}
@@ -0,0 +1,220 @@
+package org.florian.duocanvas.canvas;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Pixels painted by one bulk operation: a rectangle of the canvas with one color per pixel, EMPTY for the
+ * pixels the operation leaves alone. Regions are clipped to the canvas when they are built.
+ */
+public record Region(int x, int y, int width, int height, int[] colors) {
+
+    // Largest rectangle one operation may cover, lines and flood fills included.
+    public static final int MAX_PIXELS = Integer.getInteger("duocanvas.maxRegionPixels", 1 << 18);
+    // A line segment's bounding box stays within MAX_PIXELS.
+    private static final int SEGMENT_LENGTH = Math.max(1, (int) Math.sqrt(MAX_PIXELS));
+
+    public static Region rectangle(PixelStore pixels, int x, int y, int width, int height, int argb) {
+        Region region = clipped(pixels, x, y, width, height);
+        Arrays.fill(region.colors(), argb);
+        return region;
+    }
+
+    /*
+     * Bresenham line from (x0, y0) to (x1, y1), both ends included, of up to MAX_PIXELS pixels. It comes as
+     * segments of SEGMENT_LENGTH pixels, so a long diagonal doesn't need a region of its whole bounding box.
+     * Segments entirely off the canvas are left out.
+     */
+    public static List<Region> line(PixelStore pixels, int x0, int y0, int x1, int y1, int argb) {
+        long length = Math.max(Math.abs((long) x1 - x0), Math.abs((long) y1 - y0)) + 1;
+        if (length > MAX_PIXELS) {
+            throw new IllegalArgumentException("Lines cover 1 to " + MAX_PIXELS + " pixels.");
+        }
+        int dx = Math.abs(x1 - x0);
+        int dy = -Math.abs(y1 - y0);
+        int stepX = x0 < x1 ? 1 : -1;
+        int stepY = y0 < y1 ? 1 : -1;
+        int error = dx + dy;
+        int x = x0;
+        int y = y0;
+        List<Region> segments = new ArrayList<>();
+        int[] xs = new int[SEGMENT_LENGTH];
+        int[] ys = new int[SEGMENT_LENGTH];
+        int count = 0;
+        while (true) {
+            xs[count] = x;
+            ys[count] = y;
+            count++;
+            boolean last = x == x1 && y == y1;
+            if (count == SEGMENT_LENGTH || last) {
+                addSegment(pixels, segments, xs, ys, count, argb);
+                count = 0;
+            }
+            if (last) {
+                break;
+            }
+            int doubled = 2 * error;
+            if (doubled >= dy) {
+                error += dy;
+                x += stepX;
+            }
+            if (doubled <= dx) {
+                error += dx;
+                y += stepY;
+            }
+        }
+        return segments;
+    }
+
+    private static void addSegment(PixelStore pixels, List<Region> segments, int[] xs, int[] ys, int count,
+                                   int argb) {
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            minX = Math.min(minX, xs[i]);
+            minY = Math.min(minY, ys[i]);
+            maxX = Math.max(maxX, xs[i]);
+            maxY = Math.max(maxY, ys[i]);
+        }
+        Region segment = clipped(pixels, minX, minY, maxX - minX + 1, maxY - minY + 1);
+        if (segment.width() == 0) {
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            segment.set(xs[i], ys[i], argb);
+        }
+        segments.add(segment);
+    }
+
+    /*
+     * Repaints the 4-connected area around the seed that has the seed's color, unpainted pixels included.
+     * Visited pixels are a bitset of canvas indexes, the queue an int array that keeps every pixel it held,
+     * so it ends up listing the filled area.
+     */
+    public static Region floodFill(PixelStore pixels, int seedX, int seedY, int argb) {
+        if (!pixels.contains(seedX, seedY)) {
+            throw new IllegalArgumentException("Seed outside of the canvas: " + seedX + ", " + seedY);
+        }
+        int target = pixels.getColor(seedX, seedY);
+        if (target == argb) {
+            return new Region(seedX, seedY, 0, 0, new int[0]);
+        }
+        int width = pixels.getWidth();
+        FillQueue queue = new FillQueue();
+        int minX = seedX, minY = seedY, maxX = seedX, maxY = seedY;
+        queue.offer(seedY * width + seedX);
+        while (queue.hasNext()) {
+            int index = queue.next();
+            int x = index % width;
+            int y = index / width;
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+            if ((long) (maxX - minX + 1) * (maxY - minY + 1) > MAX_PIXELS) {
+                throw new IllegalArgumentException("Flood fill covers more than " + MAX_PIXELS + " pixels.");
+            }
+            visit(pixels, x - 1, y, target, queue);
+            visit(pixels, x + 1, y, target, queue);
+            visit(pixels, x, y - 1, target, queue);
+            visit(pixels, x, y + 1, target, queue);
+        }
+        Region region = clipped(pixels, minX, minY, maxX - minX + 1, maxY - minY + 1);
+        for (int i = 0; i < queue.size; i++) {
+            region.set(queue.indexes[i] % width, queue.indexes[i] / width, argb);
+        }
+        return region;
+    }
+
+    private static void visit(PixelStore pixels, int x, int y, int target, FillQueue queue) {
+        if (pixels.contains(x, y) && pixels.getColor(x, y) == target) {
+            queue.offer(y * pixels.getWidth() + x);
+        }
+    }
+
+    /* Takes every canvas index once. */
+    private static final class FillQueue {
+        private final BitSet queued = new BitSet();
+        private int[] indexes = new int[64];
+        private int size;
+        private int head;
+
+        void offer(int index) {
+            if (queued.get(index)) {
+                return;
+            }
+            queued.set(index);
+            if (size == indexes.length) {
+                indexes = Arrays.copyOf(indexes, size * 2);
+            }
+            indexes[size++] = index;
+        }
+
+        boolean hasNext() {
+            return head < size;
+        }
+
+        int next() {
+            return indexes[head++];
+        }
+    }
+
+    /* Paints an RGBA image with its top left corner at (x, y). Pixels with alpha below 128 are skipped. */
+    public static Region stamp(PixelStore pixels, int x, int y, int width, int height, byte[] rgba) {
+        if (width <= 0 || height <= 0 || rgba.length != width * height * 4) {
+            throw new IllegalArgumentException("Image data doesn't match its size " + width + "x" + height + ".");
+        }
+        Region region = clipped(pixels, x, y, width, height);
+        for (int row = 0; row < height; row++) {
+            for (int column = 0; column < width; column++) {
+                int offset = (row * width + column) * 4;
+                if ((rgba[offset + 3] & 0xFF) >= 128) {
+                    region.set(x + column, y + row, 0xFF000000
+                            | (rgba[offset] & 0xFF) << 16
+                            | (rgba[offset + 1] & 0xFF) << 8
+                            | (rgba[offset + 2] & 0xFF));
+                }
+            }
+        }
+        return region;
+    }
+
+    /* An empty region of the part of the rectangle that lies on the canvas. */
+    private static Region clipped(PixelStore pixels, int x, int y, int width, int height) {
+        if (width <= 0 || height <= 0 || (long) width * height > MAX_PIXELS) {
+            throw new IllegalArgumentException("Regions cover 1 to " + MAX_PIXELS + " pixels.");
+        }
+        int minX = Math.max(0, x);
+        int minY = Math.max(0, y);
+        int maxX = Math.min(pixels.getWidth(), x + width);
+        int maxY = Math.min(pixels.getHeight(), y + height);
+        if (maxX <= minX || maxY <= minY) {
+            return new Region(minX, minY, 0, 0, new int[0]);
+        }
+        int[] colors = new int[(maxX - minX) * (maxY - minY)];
+        Arrays.fill(colors, PixelStore.EMPTY);
+        return new Region(minX, minY, maxX - minX, maxY - minY, colors);
+    }
+
+    /* Ignores pixels outside of the region, i.e. off the canvas. */
+    private void set(int px, int py, int argb) {
+        if (px >= x && px < x + width && py >= y && py < y + height) {
+            colors[(py - y) * width + px - x] = argb;
+        }
+    }
+
+    public int colorAt(int px, int py) {
+        return colors[(py - y) * width + px - x];
+    }
+
+    public int paintedCount() {
+        int painted = 0;
+        for (int color : colors) {
+            if (color != PixelStore.EMPTY) {
+                painted++;
+            }
+        }
+        return painted;
+    }
+}
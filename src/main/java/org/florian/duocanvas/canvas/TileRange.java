@@ -0,0 +1,36 @@
+package org.florian.duocanvas.canvas;
+
+/**
+ * Inclusive rectangle of tiles, in tile coordinates. Used for viewport subscriptions.
+ */
+public record TileRange(int minTileX, int minTileY, int maxTileX, int maxTileY) {
+
+    public static final TileRange EMPTY = new TileRange(0, 0, -1, -1);
+
+    public boolean contains(int tileX, int tileY) {
+        return tileX >= minTileX && tileX <= maxTileX && tileY >= minTileY && tileY <= maxTileY;
+    }
+
+    public boolean intersects(TileRange other) {
+        return minTileX <= other.maxTileX && other.minTileX <= maxTileX
+                && minTileY <= other.maxTileY && other.minTileY <= maxTileY;
+    }
+
+    public int size() {
+        return Math.max(0, maxTileX - minTileX + 1) * Math.max(0, maxTileY - minTileY + 1);
+    }
+
+    /* Shrinks the range from its far edges until it holds at most maxTiles tiles. */
+    public TileRange limit(int maxTiles) {
+        int columns = Math.max(0, maxTileX - minTileX + 1);
+        int rows = Math.max(0, maxTileY - minTileY + 1);
+        while (columns * rows > maxTiles) {
+            if (columns >= rows) {
+                columns--;
+            } else {
+                rows--;
+            }
+        }
+        return new TileRange(minTileX, minTileY, minTileX + columns - 1, minTileY + rows - 1);
+    }
+}
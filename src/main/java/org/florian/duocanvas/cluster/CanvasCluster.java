@@ -0,0 +1,639 @@
+package org.florian.duocanvas.cluster;
+
+import io.javalin.websocket.WsContext;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.florian.duocanvas.Main;
+import org.florian.duocanvas.WorkerPools;
+import org.florian.duocanvas.canvas.PixelStore;
+import org.florian.duocanvas.canvas.Region;
+import org.florian.duocanvas.db.CanvasDatabase;
+import org.florian.duocanvas.db.DrawJournal;
+import org.florian.duocanvas.session.CanvasSession;
+import org.florian.duocanvas.session.SessionCache;
+import org.florian.duocanvas.session.UpdateBatcher;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+/**
+ * Serves canvases from several nodes sharing one database.
+ * Every canvas has an owner, picked by rendezvous hashing over the live members, that alone applies and
+ * journals its draws. Other nodes with clients on the canvas hold a replica: they forward draws to the owner
+ * and apply the owner's update batches before fanning them out to their own sockets. A replica that misses
+ * a batch, or sees a new owner epoch, replaces its pixels with a fresh snapshot from the owner.
+ * When ownership moves, the new owner first asks every other node to release the canvas, i.e. back it up
+ * and flush its journal, and then loads it from the database.
+ */
+public class CanvasCluster {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    static final long REQUEST_TIMEOUT_MILLIS = Long.getLong("duocanvas.cluster.requestTimeout", 5000);
+
+    // [DRAW][canvasCode][requestId][participant][x][y][argb] -> [DRAW_RESULT][requestId][result]
+    private static final byte DRAW = 1;
+    private static final byte DRAW_RESULT = 2;
+    // [UPDATES][canvasCode][epoch][sequence][owner table][count]{[x][y][argb][owner index or -1]}
+    private static final byte UPDATES = 3;
+    // [SNAPSHOT_REQUEST][canvasCode][requestId] -> [SNAPSHOT][requestId][found]([epoch][sequence][length][canvas blob])
+    private static final byte SNAPSHOT_REQUEST = 4;
+    private static final byte SNAPSHOT = 5;
+    // [RELEASE][canvasCode][requestId] -> [RELEASED][requestId]
+    private static final byte RELEASE = 6;
+    private static final byte RELEASED = 7;
+    // [UNSUBSCRIBE][canvasCode], [PARTICIPANT_LEFT][canvasCode][participant]
+    private static final byte UNSUBSCRIBE = 8;
+    private static final byte PARTICIPANT_LEFT = 9;
+    // [REGION][canvasCode][requestId][participant][length][request JSON] -> [DRAW_RESULT][requestId][result]
+    private static final byte REGION = 10;
+
+    record UpdateBatch(long epoch, long sequence, UpdateBatcher.Batch pixels, String[] owners) {
+    }
+
+    /* A forwarded draw or region, complete answers the client. */
+    private record PendingDraw(LongConsumer complete, long sentAt) {
+    }
+
+    private record Snapshot(long epoch, long sequence, CanvasSession session) {
+    }
+
+    private interface MessageWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static volatile ClusterBus bus;
+    private static final AtomicLong REQUEST_IDS = new AtomicLong();
+    private static final Map<Long, PendingDraw> PENDING_DRAWS = new ConcurrentHashMap<>();
+    private static final Map<Long, CompletableFuture<DataInputStream>> PENDING_REQUESTS = new ConcurrentHashMap<>();
+    // Batches of replicas that are still waiting for their snapshot, guarded by itself.
+    private static final Map<String, List<UpdateBatch>> LOADING_REPLICAS = new HashMap<>();
+    private static final Object REBALANCE_LOCK = new Object();
+
+    public static void start(ClusterBus clusterBus) throws IOException {
+        bus = clusterBus;
+        clusterBus.start(CanvasCluster::receive, () -> WorkerPools.schedule(Duration.ZERO, CanvasCluster::rebalance));
+        WorkerPools.repeat("cluster-draw-timeouts", Duration.ofSeconds(1), CanvasCluster::expireDraws);
+    }
+
+    /* Backs up the canvases this node owns and leaves, the remaining nodes take them over. */
+    public static void leave() {
+        DrawJournal.flush();
+        try {
+            CanvasDatabase.backupCanvasData();
+        } catch (IOException e) {
+            LOGGER.debug(e);
+        }
+        bus.close();
+    }
+
+    public static boolean isEnabled() {
+        return bus != null;
+    }
+
+    /* Always true without a cluster. */
+    public static boolean isOwner(String canvasCode) {
+        return bus == null || ownerOf(canvasCode).equals(bus.getNodeId());
+    }
+
+    public static String ownerOf(String canvasCode) {
+        String owner = null;
+        long bestScore = 0;
+        for (String node : bus.getMembers()) {
+            long score = score(node, canvasCode);
+            if (owner == null || score > bestScore || (score == bestScore && node.compareTo(owner) < 0)) {
+                owner = node;
+                bestScore = score;
+            }
+        }
+        return owner;
+    }
+
+    // String.hashCode is specified, so every node computes the same scores.
+    private static long score(String node, String canvasCode) {
+        long hash = node.hashCode() * 0x9E3779B97F4A7C15L + canvasCode.hashCode();
+        hash = (hash ^ (hash >>> 33)) * 0xFF51AFD7ED558CCDL;
+        hash = (hash ^ (hash >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    /* Asks every other node to give the canvas up and waits for them, so the database holds all of its draws. */
+    public static void acquire(String canvasCode) {
+        List<CompletableFuture<DataInputStream>> releases = new ArrayList<>();
+        for (String node : bus.getMembers()) {
+            if (!node.equals(bus.getNodeId())) {
+                releases.add(request(node, RELEASE, canvasCode));
+            }
+        }
+        releases.forEach(CanvasCluster::await);
+        DrawJournal.flush();
+        // Sequences are per node, the canvas' journal has to continue above the ones of its previous owners.
+        DrawJournal.advanceTo(CanvasDatabase.getLastSequence(canvasCode));
+    }
+
+    /* Creates a replica from the owner's snapshot, null if the owner doesn't know the canvas or doesn't answer. */
+    public static CanvasSession loadReplica(String canvasCode) throws IOException {
+        synchronized (LOADING_REPLICAS) {
+            LOADING_REPLICAS.put(canvasCode, new ArrayList<>());
+        }
+        try {
+            String owner = ownerOf(canvasCode);
+            Snapshot snapshot = fetchSnapshot(owner, canvasCode);
+            if (snapshot == null) {
+                return null;
+            }
+            CanvasSession session = snapshot.session();
+            session.getReplication().becomeReplica(owner, snapshot.epoch(), snapshot.sequence());
+            synchronized (LOADING_REPLICAS) {
+                Main.ACTIVE_CANVAS_SESSIONS.put(canvasCode, session);
+                LOADING_REPLICAS.remove(canvasCode).forEach(batch -> apply(session, batch));
+            }
+            return session;
+        } finally {
+            synchronized (LOADING_REPLICAS) {
+                LOADING_REPLICAS.remove(canvasCode);
+            }
+        }
+    }
+
+    /* Sends a draw of a replica's client to the owner, the client gets its response once the owner answered. */
+    public static void forwardDraw(CanvasSession session, WsContext ctx, boolean binary, int x, int y, int argb) {
+        String owner = ownerOf(session.canvasCode);
+        if (owner.equals(bus.getNodeId())) {
+            // This node is taking the canvas over right now.
+            session.completeForwardedDraw(ctx, binary, -1);
+            return;
+        }
+        long requestId = REQUEST_IDS.incrementAndGet();
+        PENDING_DRAWS.put(requestId, new PendingDraw(
+                result -> session.completeForwardedDraw(ctx, binary, result), System.nanoTime()));
+        session.getReplication().forwardingParticipants.add(ctx.sessionId());
+        bus.send(owner, encode(out -> {
+            out.writeByte(DRAW);
+            out.writeUTF(session.canvasCode);
+            out.writeLong(requestId);
+            out.writeUTF(ctx.sessionId());
+            out.writeInt(x);
+            out.writeInt(y);
+            out.writeInt(argb);
+        }));
+    }
+
+    /* Sends a bulk draw of a replica's client to the owner, as the JSON the client sent. */
+    public static void forwardRegion(CanvasSession session, WsContext ctx, String requestJson) {
+        String owner = ownerOf(session.canvasCode);
+        if (owner.equals(bus.getNodeId())) {
+            session.sendRegionResponse(ctx, -1);
+            return;
+        }
+        long requestId = REQUEST_IDS.incrementAndGet();
+        PENDING_DRAWS.put(requestId, new PendingDraw(
+                result -> session.sendRegionResponse(ctx, result), System.nanoTime()));
+        session.getReplication().forwardingParticipants.add(ctx.sessionId());
+        // Stamped images can exceed the 64 KB of writeUTF.
+        byte[] request = requestJson.getBytes(StandardCharsets.UTF_8);
+        bus.send(owner, encode(out -> {
+            out.writeByte(REGION);
+            out.writeUTF(session.canvasCode);
+            out.writeLong(requestId);
+            out.writeUTF(ctx.sessionId());
+            out.writeInt(request.length);
+            out.write(request);
+        }));
+    }
+
+    /* Sends an owner's update batch to every node holding a replica, in messages of at most Region.MAX_PIXELS. */
+    public static void publishUpdates(CanvasSession session, UpdateBatcher.Batch batch) {
+        Replication replication = session.getReplication();
+        if (replication.isReplica() || !replication.hasReplicaNodes()) {
+            return;
+        }
+        if (batch.size() > Region.MAX_PIXELS) {
+            for (int from = 0; from < batch.size(); from += Region.MAX_PIXELS) {
+                int to = Math.min(batch.size(), from + Region.MAX_PIXELS);
+                publishUpdates(session, new UpdateBatcher.Batch(Arrays.copyOfRange(batch.xs(), from, to),
+                        Arrays.copyOfRange(batch.ys(), from, to), Arrays.copyOfRange(batch.colors(), from, to)));
+            }
+            return;
+        }
+        PixelStore pixels = session.getCanvasData();
+        Map<String, Integer> ownerIndexes = new HashMap<>();
+        List<String> ownerTable = new ArrayList<>();
+        int[] owners = new int[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            String owner = pixels.getOwner(batch.xs()[i], batch.ys()[i]);
+            owners[i] = owner == null ? -1 : ownerIndexes.computeIfAbsent(owner, key -> {
+                ownerTable.add(key);
+                return ownerTable.size() - 1;
+            });
+        }
+        // Numbered and sent under the lock, so batches leave in sequence order.
+        synchronized (replication) {
+            long epoch = replication.epoch;
+            long sequence = ++replication.sequence;
+            byte[] message = encode(out -> {
+                out.writeByte(UPDATES);
+                out.writeUTF(session.canvasCode);
+                out.writeLong(epoch);
+                out.writeLong(sequence);
+                out.writeInt(ownerTable.size());
+                for (String owner : ownerTable) {
+                    out.writeUTF(owner);
+                }
+                out.writeInt(batch.size());
+                for (int i = 0; i < batch.size(); i++) {
+                    out.writeInt(batch.xs()[i]);
+                    out.writeInt(batch.ys()[i]);
+                    out.writeInt(batch.colors()[i]);
+                    out.writeInt(owners[i]);
+                }
+            });
+            for (String node : replication.replicaNodes) {
+                bus.send(node, message);
+            }
+        }
+    }
+
+    /* Lets the owner drop the rate limit bucket of a participant that drew through this replica. */
+    public static void participantLeft(CanvasSession session, String participant) {
+        Replication replication = session.getReplication();
+        String owner = replication.getOwnerNode();
+        if (replication.forwardingParticipants.remove(participant) && owner != null) {
+            bus.send(owner, encode(out -> {
+                out.writeByte(PARTICIPANT_LEFT);
+                out.writeUTF(session.canvasCode);
+                out.writeUTF(participant);
+            }));
+        }
+    }
+
+    /* Called after a canvas was evicted, a replica stops receiving the owner's batches. */
+    public static void evicted(CanvasSession session) {
+        Replication replication = session.getReplication();
+        String owner = replication.getOwnerNode();
+        if (replication.isReplica() && owner != null) {
+            bus.send(owner, encode(out -> {
+                out.writeByte(UNSUBSCRIBE);
+                out.writeUTF(session.canvasCode);
+            }));
+        }
+    }
+
+    private static void receive(String fromNode, byte[] message) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(message));
+            byte type = in.readByte();
+            switch (type) {
+                case DRAW -> receiveDraw(fromNode, in);
+                case DRAW_RESULT -> {
+                    PendingDraw draw = PENDING_DRAWS.remove(in.readLong());
+                    long result = in.readLong();
+                    if (draw != null) {
+                        draw.complete().accept(result);
+                    }
+                }
+                case REGION -> receiveRegion(fromNode, in);
+                case UPDATES -> receiveUpdates(in);
+                case SNAPSHOT_REQUEST, RELEASE -> {
+                    String canvasCode = in.readUTF();
+                    long requestId = in.readLong();
+                    // Both may load the canvas, which waits for other nodes and must not hold up this connection.
+                    WorkerPools.schedule(Duration.ZERO, () -> {
+                        if (type == SNAPSHOT_REQUEST) {
+                            sendSnapshot(fromNode, canvasCode, requestId);
+                        } else {
+                            release(fromNode, canvasCode, requestId);
+                        }
+                    });
+                }
+                case SNAPSHOT, RELEASED -> {
+                    CompletableFuture<DataInputStream> response = PENDING_REQUESTS.remove(in.readLong());
+                    if (response != null) {
+                        response.complete(in);
+                    }
+                }
+                case UNSUBSCRIBE -> {
+                    CanvasSession session = Main.ACTIVE_CANVAS_SESSIONS.get(in.readUTF());
+                    if (session != null) {
+                        session.getReplication().replicaNodes.remove(fromNode);
+                    }
+                }
+                case PARTICIPANT_LEFT -> {
+                    CanvasSession session = Main.ACTIVE_CANVAS_SESSIONS.get(in.readUTF());
+                    String participant = in.readUTF();
+                    if (session != null && !session.getReplication().isReplica()) {
+                        session.getDrawLimiter().remove(participant);
+                    }
+                }
+                default -> LOGGER.debug("Unknown cluster message {} from {}.", type, fromNode);
+            }
+        } catch (IOException e) {
+            LOGGER.debug(e);
+        }
+    }
+
+    private static void receiveDraw(String fromNode, DataInputStream in) throws IOException {
+        String canvasCode = in.readUTF();
+        long requestId = in.readLong();
+        String participant = in.readUTF();
+        int x = in.readInt();
+        int y = in.readInt();
+        int argb = in.readInt();
+
+        CanvasSession session = Main.ACTIVE_CANVAS_SESSIONS.get(canvasCode);
+        if (session != null) {
+            replyDraw(fromNode, requestId, drawAsOwner(session, x, y, argb, participant));
+            return;
+        }
+        // Loading the canvas waits for other nodes, which must not hold up this connection.
+        WorkerPools.schedule(Duration.ZERO, () -> {
+            CanvasSession loaded = isOwner(canvasCode) ? SessionCache.get(canvasCode) : null;
+            replyDraw(fromNode, requestId, loaded == null ? -1 : drawAsOwner(loaded, x, y, argb, participant));
+        });
+    }
+
+    private static void receiveRegion(String fromNode, DataInputStream in) throws IOException {
+        String canvasCode = in.readUTF();
+        long requestId = in.readLong();
+        String participant = in.readUTF();
+        String requestJson = new String(in.readNBytes(in.readInt()), StandardCharsets.UTF_8);
+
+        // A region can cover many pixels, it is never applied on this connection's thread.
+        WorkerPools.schedule(Duration.ZERO, () -> {
+            CanvasSession session = isOwner(canvasCode) ? SessionCache.get(canvasCode) : null;
+            replyDraw(fromNode, requestId, session == null || session.getReplication().isReplica()
+                    ? -1
+                    : session.drawRegionForwarded(requestJson, participant));
+        });
+    }
+
+    private static long drawAsOwner(CanvasSession session, int x, int y, int argb, String participant) {
+        return session.getReplication().isReplica() ? -1 : session.drawForwarded(x, y, argb, participant);
+    }
+
+    private static void replyDraw(String toNode, long requestId, long result) {
+        bus.send(toNode, encode(out -> {
+            out.writeByte(DRAW_RESULT);
+            out.writeLong(requestId);
+            out.writeLong(result);
+        }));
+    }
+
+    private static void receiveUpdates(DataInputStream in) throws IOException {
+        String canvasCode = in.readUTF();
+        long epoch = in.readLong();
+        long sequence = in.readLong();
+        String[] ownerTable = new String[in.readInt()];
+        for (int i = 0; i < ownerTable.length; i++) {
+            ownerTable[i] = in.readUTF();
+        }
+        int count = in.readInt();
+        int[] xs = new int[count];
+        int[] ys = new int[count];
+        int[] colors = new int[count];
+        String[] owners = new String[count];
+        for (int i = 0; i < count; i++) {
+            xs[i] = in.readInt();
+            ys[i] = in.readInt();
+            colors[i] = in.readInt();
+            int owner = in.readInt();
+            owners[i] = owner < 0 ? null : ownerTable[owner];
+        }
+        UpdateBatch batch = new UpdateBatch(epoch, sequence, new UpdateBatcher.Batch(xs, ys, colors), owners);
+
+        CanvasSession session;
+        synchronized (LOADING_REPLICAS) {
+            List<UpdateBatch> waiting = LOADING_REPLICAS.get(canvasCode);
+            if (waiting != null) {
+                waiting.add(batch);
+                return;
+            }
+            session = Main.ACTIVE_CANVAS_SESSIONS.get(canvasCode);
+        }
+        if (session != null) {
+            apply(session, batch);
+        }
+    }
+
+    /* Applies the next batch, or starts a resync if one went missing or the owner changed. */
+    private static void apply(CanvasSession session, UpdateBatch batch) {
+        Replication replication = session.getReplication();
+        synchronized (replication) {
+            if (!replication.isReplica()) {
+                return;
+            }
+            if (replication.buffered != null) {
+                replication.buffered.add(batch);
+                return;
+            }
+            if (batch.epoch() == replication.epoch && batch.sequence() <= replication.sequence) {
+                // Already part of the snapshot.
+                return;
+            }
+            if (batch.epoch() != replication.epoch || batch.sequence() != replication.sequence + 1) {
+                replication.buffered = new ArrayList<>(List.of(batch));
+                WorkerPools.schedule(Duration.ZERO, () -> resync(session));
+                return;
+            }
+            replication.sequence = batch.sequence();
+            session.applyReplicatedUpdates(batch.pixels(), batch.owners());
+        }
+    }
+
+    private static void requestResync(CanvasSession session) {
+        if (session.getReplication().beginSync()) {
+            WorkerPools.schedule(Duration.ZERO, () -> resync(session));
+        }
+    }
+
+    private static void resync(CanvasSession session) throws IOException {
+        Replication replication = session.getReplication();
+        String owner = ownerOf(session.canvasCode);
+        Snapshot snapshot = owner.equals(bus.getNodeId()) ? null : fetchSnapshot(owner, session.canvasCode);
+        synchronized (replication) {
+            List<UpdateBatch> buffered = replication.buffered;
+            replication.buffered = null;
+            if (!replication.isReplica()) {
+                return;
+            }
+            if (snapshot == null) {
+                // The next batch tries again.
+                replication.becomeReplica(owner, Replication.UNKNOWN_EPOCH, 0);
+                return;
+            }
+            session.replaceCanvas(snapshot.session().getCanvasData());
+            replication.becomeReplica(owner, snapshot.epoch(), snapshot.sequence());
+            if (buffered != null) {
+                buffered.forEach(batch -> apply(session, batch));
+            }
+        }
+        LOGGER.debug("Resynced {} from {}.", session.canvasCode, owner);
+    }
+
+    private static Snapshot fetchSnapshot(String owner, String canvasCode) throws IOException {
+        DataInputStream in = await(request(owner, SNAPSHOT_REQUEST, canvasCode));
+        if (in == null || !in.readBoolean()) {
+            return null;
+        }
+        long epoch = in.readLong();
+        long sequence = in.readLong();
+        byte[] canvasBytes = in.readNBytes(in.readInt());
+        return new Snapshot(epoch, sequence, CanvasDatabase.getCanvasDataFromBytes(canvasBytes));
+    }
+
+    private static void sendSnapshot(String toNode, String canvasCode, long requestId) throws IOException {
+        CanvasSession session = isOwner(canvasCode) ? SessionCache.get(canvasCode) : null;
+        if (session == null || session.getReplication().isReplica()) {
+            bus.send(toNode, encode(out -> {
+                out.writeByte(SNAPSHOT);
+                out.writeLong(requestId);
+                out.writeBoolean(false);
+            }));
+            return;
+        }
+        Replication replication = session.getReplication();
+        long epoch;
+        long sequence;
+        synchronized (replication) {
+            replication.replicaNodes.add(toNode);
+            epoch = replication.epoch;
+            sequence = replication.sequence;
+        }
+        // Encoded after reading the position: batches published meanwhile are applied on top, which is harmless.
+        byte[] canvasBytes = CanvasDatabase.getCanvasDataAsBytes(session);
+        bus.send(toNode, encode(out -> {
+            out.writeByte(SNAPSHOT);
+            out.writeLong(requestId);
+            out.writeBoolean(true);
+            out.writeLong(epoch);
+            out.writeLong(sequence);
+            out.writeInt(canvasBytes.length);
+            out.write(canvasBytes);
+        }));
+    }
+
+    private static void release(String toNode, String canvasCode, long requestId) throws IOException {
+        CanvasSession session = Main.ACTIVE_CANVAS_SESSIONS.get(canvasCode);
+        if (session != null) {
+            demote(session, toNode);
+        }
+        DrawJournal.flush();
+        bus.send(toNode, encode(out -> {
+            out.writeByte(RELEASED);
+            out.writeLong(requestId);
+        }));
+    }
+
+    /* Re-checks the role of every resident canvas after nodes joined or left. */
+    private static void rebalance() {
+        synchronized (REBALANCE_LOCK) {
+            Set<String> members = bus.getMembers();
+            for (CanvasSession session : Main.ACTIVE_CANVAS_SESSIONS.values()) {
+                Replication replication = session.getReplication();
+                replication.replicaNodes.retainAll(members);
+                String owner = ownerOf(session.canvasCode);
+                try {
+                    if (!replication.isReplica() && !owner.equals(bus.getNodeId())) {
+                        demote(session, owner);
+                    } else if (replication.isReplica() && owner.equals(bus.getNodeId())) {
+                        promote(session);
+                    } else if (replication.isReplica() && !owner.equals(replication.getOwnerNode())) {
+                        requestResync(session);
+                    }
+                } catch (Exception e) {
+                    LOGGER.debug(e);
+                }
+            }
+        }
+    }
+
+    /* Stops applying draws: backs the canvas up and follows the new owner from now on. */
+    private static void demote(CanvasSession session, String newOwner) throws IOException {
+        Replication replication = session.getReplication();
+        if (replication.isReplica()) {
+            return;
+        }
+        CanvasDatabase.backupCanvasSessions(List.of(session));
+        // Draws that slip in after the backup are journaled, the new owner replays them.
+        replication.becomeReplica(newOwner, Replication.UNKNOWN_EPOCH, 0);
+        DrawJournal.flush();
+        requestResync(session);
+        LOGGER.debug("Handed {} over to {}.", session.canvasCode, newOwner);
+    }
+
+    /* Takes a replicated canvas over, starting from what the previous owners stored. */
+    private static void promote(CanvasSession session) throws IOException {
+        acquire(session.canvasCode);
+        CanvasSession stored = SessionCache.loadFromDatabase(session.canvasCode);
+        Replication replication = session.getReplication();
+        synchronized (replication) {
+            if (stored != null) {
+                session.replaceCanvas(stored.getCanvasData());
+                session.getDrawLimiter().setLimits(stored.getDrawLimiter().getRate(), stored.getDrawLimiter().getBurst());
+            }
+            replication.becomeOwner();
+        }
+        LOGGER.debug("Took over {}.", session.canvasCode);
+    }
+
+    private static void expireDraws() {
+        long deadline = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(REQUEST_TIMEOUT_MILLIS);
+        PENDING_DRAWS.forEach((requestId, draw) -> {
+            if (draw.sentAt() - deadline < 0 && PENDING_DRAWS.remove(requestId, draw)) {
+                draw.complete().accept(-1);
+            }
+        });
+    }
+
+    private static CompletableFuture<DataInputStream> request(String node, byte type, String canvasCode) {
+        long requestId = REQUEST_IDS.incrementAndGet();
+        CompletableFuture<DataInputStream> response = new CompletableFuture<>();
+        PENDING_REQUESTS.put(requestId, response);
+        response.orTimeout(REQUEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                .whenComplete((in, e) -> PENDING_REQUESTS.remove(requestId));
+        bus.send(node, encode(out -> {
+            out.writeByte(type);
+            out.writeUTF(canvasCode);
+            out.writeLong(requestId);
+        }));
+        return response;
+    }
+
+    /* The response, or null if the node didn't answer in time. */
+    private static DataInputStream await(CompletableFuture<DataInputStream> response) {
+        try {
+            return response.join();
+        } catch (CompletionException | CancellationException e) {
+            return null;
+        }
+    }
+
+    private static byte[] encode(MessageWriter writer) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            writer.write(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,29 @@
+package org.florian.duocanvas.cluster;
+
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * Connects the nodes of a cluster.
+ * Messages from one node to another arrive in the order they were sent, but may get lost when a connection
+ * breaks; receivers notice through the sequence numbers inside the messages.
+ */
+public interface ClusterBus {
+
+    interface Handler {
+        void onMessage(String fromNode, byte[] message);
+    }
+
+    String getNodeId();
+
+    /* The live nodes, including this one. */
+    Set<String> getMembers();
+
+    void send(String nodeId, byte[] message);
+
+    /* Both callbacks run on the bus' own threads, membershipChanged whenever getMembers() changed. */
+    void start(Handler handler, Runnable membershipChanged) throws IOException;
+
+    /* Tells the other nodes this one is leaving and closes the connections. */
+    void close();
+}
@@ -0,0 +1,78 @@
+package org.florian.duocanvas.cluster;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Role of one resident canvas in the cluster.
+ * The owner numbers the update batches it publishes within an epoch, a new one whenever a node takes
+ * ownership, and knows which nodes hold a replica. A replica remembers the owner, epoch and last batch
+ * it applied. Without a cluster every canvas stays its own owner.
+ * Guarded by its own monitor, except the concurrent sets.
+ */
+public class Replication {
+
+    // A replica that doesn't know the owner's epoch yet resyncs on the first batch it receives.
+    static final long UNKNOWN_EPOCH = 0;
+
+    private volatile boolean replica;
+    private volatile String ownerNode;
+    long epoch = newEpoch();
+    long sequence;
+    // While a replica fetches a snapshot, incoming batches wait here. Null otherwise.
+    List<CanvasCluster.UpdateBatch> buffered;
+
+    // Owner: the nodes to publish update batches to.
+    final Set<String> replicaNodes = ConcurrentHashMap.newKeySet();
+    // Replica: participants that had draws forwarded, the owner keeps rate limit buckets for them.
+    final Set<String> forwardingParticipants = ConcurrentHashMap.newKeySet();
+
+    public boolean isReplica() {
+        return replica;
+    }
+
+    public boolean hasReplicaNodes() {
+        return !replicaNodes.isEmpty();
+    }
+
+    String getOwnerNode() {
+        return ownerNode;
+    }
+
+    synchronized void becomeOwner() {
+        replica = false;
+        ownerNode = null;
+        epoch = newEpoch();
+        sequence = 0;
+        buffered = null;
+        replicaNodes.clear();
+    }
+
+    synchronized void becomeReplica(String owner, long ownerEpoch, long ownerSequence) {
+        replica = true;
+        ownerNode = owner;
+        epoch = ownerEpoch;
+        sequence = ownerSequence;
+        replicaNodes.clear();
+    }
+
+    /* Starts buffering batches for a resync. Returns false if one is already running. */
+    synchronized boolean beginSync() {
+        if (buffered != null) {
+            return false;
+        }
+        buffered = new ArrayList<>();
+        return true;
+    }
+
+    synchronized boolean isSyncing() {
+        return buffered != null;
+    }
+
+    private static long newEpoch() {
+        return ThreadLocalRandom.current().nextLong() | 1;
+    }
+}
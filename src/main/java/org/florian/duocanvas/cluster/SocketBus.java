@@ -0,0 +1,351 @@
+package org.florian.duocanvas.cluster;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.florian.duocanvas.Main;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bus over plain TCP, e.g. for several nodes on one machine. A node is named by the host:port it listens on.
+ * Every node keeps one outgoing connection per peer and learns about peers from its seed list and from
+ * nodes connecting to it. A peer counts as live while anything, at least a heartbeat, arrived from it within
+ * TIMEOUT_MILLIS. Messages for a peer that is unreachable are queued up to MAX_QUEUED_FRAMES, then dropped.
+ * A connection opens with a random challenge from the accepting node, answered by the hello, which must carry
+ * HMAC-SHA256(secret, challenge + node id). The bus doesn't start without -Dduocanvas.cluster.secret.
+ * Accepted connections that stay silent for TIMEOUT_MILLIS are closed.
+ *
+ * <pre>
+ * challenge: [16 bytes]
+ * frame: [kind:1][length:int][payload]   kind 0 = hello (payload: mac:32, node id), 1 = heartbeat, 2 = message,
+ *                                        3 = leave
+ * </pre>
+ */
+public class SocketBus implements ClusterBus {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    static final long HEARTBEAT_MILLIS = Long.getLong("duocanvas.cluster.heartbeat", 500);
+    static final long TIMEOUT_MILLIS = Long.getLong("duocanvas.cluster.timeout", 3000);
+    static final int MAX_QUEUED_FRAMES = 10_000;
+    // The largest message is the snapshot of a canvas: a color and an owner id per pixel of the largest canvas,
+    // plus room for the headers and the owner table. Update batches are split far below that.
+    static final int MAX_FRAME_LENGTH = Integer.getInteger("duocanvas.cluster.maxFrameLength",
+            (int) Math.min(Integer.MAX_VALUE - 8, 8L * Main.MAX_CANVAS_SIZE * Main.MAX_CANVAS_SIZE + (1 << 20)));
+    static final int CHALLENGE_LENGTH = 16;
+    static final int MAC_LENGTH = 32;
+    static final int MAX_HELLO_LENGTH = MAC_LENGTH + 1024;
+
+    private static final byte HELLO = 0;
+    private static final byte HEARTBEAT = 1;
+    private static final byte MESSAGE = 2;
+    private static final byte LEAVE = 3;
+
+    private final String nodeId;
+    private final List<String> seeds;
+    private final byte[] secret;
+    private final SecureRandom random = new SecureRandom();
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+    private final Map<String, Long> lastSeen = new ConcurrentHashMap<>();
+    private volatile Set<String> members;
+    private volatile boolean closed;
+    private ServerSocket server;
+    private Handler handler;
+    private Runnable membershipChanged;
+
+    public SocketBus(String nodeId, List<String> seeds, String secret) {
+        this.nodeId = nodeId;
+        this.seeds = seeds;
+        this.secret = secret == null || secret.isEmpty() ? null : secret.getBytes(StandardCharsets.UTF_8);
+        this.members = Set.of(nodeId);
+    }
+
+    /*
+     * -Dduocanvas.cluster.node=host:port of this node, -Dduocanvas.cluster.peers=host:port,host:port,...
+     * and -Dduocanvas.cluster.secret shared by all nodes.
+     */
+    public static SocketBus fromProperties() {
+        String peerList = System.getProperty("duocanvas.cluster.peers", "");
+        List<String> seeds = Arrays.stream(peerList.split(",")).map(String::trim).filter(peer -> !peer.isEmpty()).toList();
+        return new SocketBus(System.getProperty("duocanvas.cluster.node"), seeds,
+                System.getProperty("duocanvas.cluster.secret"));
+    }
+
+    @Override
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public Set<String> getMembers() {
+        return members;
+    }
+
+    @Override
+    public void send(String toNode, byte[] message) {
+        if (toNode.equals(nodeId)) {
+            handler.onMessage(nodeId, message);
+            return;
+        }
+        Peer peer = peers.get(toNode);
+        if (peer != null) {
+            peer.enqueue(frame(MESSAGE, message));
+        }
+    }
+
+    @Override
+    public void start(Handler handler, Runnable membershipChanged) throws IOException {
+        if (secret == null) {
+            throw new IOException("Cluster nodes need a shared -Dduocanvas.cluster.secret.");
+        }
+        this.handler = handler;
+        this.membershipChanged = membershipChanged;
+        server = new ServerSocket();
+        server.bind(address(nodeId));
+        Thread.ofVirtual().name("cluster-accept").start(this::acceptConnections);
+        Thread.ofVirtual().name("cluster-membership").start(this::checkMembership);
+        for (String seed : seeds) {
+            peer(seed);
+        }
+        LOGGER.debug("Cluster node {} started with seeds {}.", nodeId, seeds);
+    }
+
+    @Override
+    public void close() {
+        byte[] leave = frame(LEAVE, new byte[0]);
+        peers.values().forEach(peer -> peer.enqueue(leave));
+        closed = true;
+        for (Peer peer : peers.values()) {
+            try {
+                peer.writer.join(TimeUnit.SECONDS.toMillis(1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        try {
+            server.close();
+        } catch (IOException e) {
+            LOGGER.debug(e);
+        }
+    }
+
+    private void peer(String peerId) {
+        if (!peerId.equals(nodeId) && !closed) {
+            peers.computeIfAbsent(peerId, Peer::new);
+        }
+    }
+
+    private void acceptConnections() {
+        while (!closed) {
+            try {
+                Socket socket = server.accept();
+                // Peers send at least a heartbeat every HEARTBEAT_MILLIS, a silent connection is not a peer.
+                socket.setSoTimeout((int) TIMEOUT_MILLIS);
+                Thread.ofVirtual().name("cluster-receive").start(() -> receive(socket));
+            } catch (IOException e) {
+                if (!closed) {
+                    LOGGER.debug(e);
+                }
+            }
+        }
+    }
+
+    private void receive(Socket socket) {
+        try (socket; DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            byte[] challenge = new byte[CHALLENGE_LENGTH];
+            random.nextBytes(challenge);
+            socket.getOutputStream().write(challenge);
+            socket.getOutputStream().flush();
+            String fromNode = readHello(in, challenge);
+            peer(fromNode);
+            seen(fromNode);
+            while (!closed) {
+                byte kind = in.readByte();
+                int length = in.readInt();
+                if (length < 0 || length > MAX_FRAME_LENGTH) {
+                    throw new IOException("Invalid frame length " + length);
+                }
+                byte[] payload = in.readNBytes(length);
+                if (kind == HELLO) {
+                    throw new IOException("Second hello from " + fromNode);
+                }
+                if (kind == LEAVE) {
+                    lastSeen.remove(fromNode);
+                    updateMembers();
+                    return;
+                }
+                seen(fromNode);
+                if (kind == MESSAGE) {
+                    handler.onMessage(fromNode, payload);
+                }
+            }
+        } catch (IOException e) {
+            // The sender reconnects, membership is decided by the heartbeats.
+            LOGGER.debug("Cluster connection closed: {}", e.getMessage());
+        }
+    }
+
+    /* The node id of a hello that answers the challenge, nodes that don't know the secret are turned away. */
+    private String readHello(DataInputStream in, byte[] challenge) throws IOException {
+        byte kind = in.readByte();
+        int length = in.readInt();
+        if (kind != HELLO || length < MAC_LENGTH || length > MAX_HELLO_LENGTH) {
+            throw new IOException("Expected a hello, got kind " + kind + " of length " + length);
+        }
+        byte[] payload = in.readNBytes(length);
+        byte[] node = Arrays.copyOfRange(payload, MAC_LENGTH, payload.length);
+        String fromNode = new String(node, StandardCharsets.UTF_8);
+        boolean admitted = MessageDigest.isEqual(Arrays.copyOf(payload, MAC_LENGTH), mac(challenge, node));
+        if (!admitted || fromNode.equals(nodeId)) {
+            throw new IOException("Rejected hello from " + fromNode);
+        }
+        return fromNode;
+    }
+
+    private byte[] hello(byte[] challenge) {
+        byte[] node = nodeId.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(MAC_LENGTH + node.length).put(mac(challenge, node)).put(node).array();
+    }
+
+    private byte[] mac(byte[] challenge, byte[] node) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            mac.update(challenge);
+            return mac.doFinal(node);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void seen(String fromNode) {
+        lastSeen.put(fromNode, System.nanoTime());
+        if (!members.contains(fromNode)) {
+            updateMembers();
+        }
+    }
+
+    private void checkMembership() {
+        while (!closed) {
+            try {
+                Thread.sleep(HEARTBEAT_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            updateMembers();
+        }
+    }
+
+    private synchronized void updateMembers() {
+        long deadline = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        Set<String> live = new HashSet<>();
+        live.add(nodeId);
+        lastSeen.forEach((peerId, seenAt) -> {
+            if (seenAt - deadline > 0) {
+                live.add(peerId);
+            }
+        });
+        if (!live.equals(members)) {
+            members = Set.copyOf(live);
+            LOGGER.debug("Cluster members: {}", members);
+            membershipChanged.run();
+        }
+    }
+
+    private static byte[] frame(byte kind, byte[] payload) {
+        return ByteBuffer.allocate(5 + payload.length).put(kind).putInt(payload.length).put(payload).array();
+    }
+
+    private static InetSocketAddress address(String node) {
+        int separator = node.lastIndexOf(':');
+        return new InetSocketAddress(node.substring(0, separator), Integer.parseInt(node.substring(separator + 1)));
+    }
+
+    /* Outgoing side of one peer: a queue and a thread that keeps a connection open and writes the queue out. */
+    private class Peer {
+        private final String peerId;
+        private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(MAX_QUEUED_FRAMES);
+        private final Thread writer;
+
+        Peer(String peerId) {
+            this.peerId = peerId;
+            this.writer = Thread.ofVirtual().name("cluster-send-" + peerId).start(this::run);
+        }
+
+        void enqueue(byte[] frame) {
+            if (!queue.offer(frame)) {
+                LOGGER.debug("Send queue to {} is full, dropping a message.", peerId);
+            }
+        }
+
+        private void run() {
+            while (!closed || !queue.isEmpty()) {
+                try (Socket socket = new Socket()) {
+                    socket.connect(address(peerId), (int) HEARTBEAT_MILLIS * 2);
+                    socket.setTcpNoDelay(true);
+                    socket.setSoTimeout((int) TIMEOUT_MILLIS);
+                    byte[] challenge = socket.getInputStream().readNBytes(CHALLENGE_LENGTH);
+                    if (challenge.length != CHALLENGE_LENGTH) {
+                        throw new IOException("No challenge from " + peerId);
+                    }
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    out.write(frame(HELLO, hello(challenge)));
+                    out.flush();
+                    write(out);
+                    return;
+                } catch (IOException e) {
+                    if (closed) {
+                        return;
+                    }
+                    try {
+                        Thread.sleep(HEARTBEAT_MILLIS);
+                    } catch (InterruptedException interrupted) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        /* Returns once the bus is closed and the queue is empty, throws when the connection broke. */
+        private void write(DataOutputStream out) throws IOException {
+            byte[] heartbeat = frame(HEARTBEAT, new byte[0]);
+            while (!closed || !queue.isEmpty()) {
+                byte[] frame;
+                try {
+                    frame = queue.poll(HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                out.write(frame == null ? heartbeat : frame);
+                if (queue.isEmpty()) {
+                    out.flush();
+                }
+            }
+            out.flush();
+        }
+    }
+}
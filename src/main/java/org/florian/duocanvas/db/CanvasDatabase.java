@@ -3,33 +3,121 @@ package org.florian.duocanvas.db;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.florian.duocanvas.Main;
+import org.florian.duocanvas.canvas.CanvasPixel;
+import org.florian.duocanvas.canvas.Palette;
+import org.florian.duocanvas.canvas.PixelStore;
+import org.florian.duocanvas.metrics.Metrics;
 import org.florian.duocanvas.session.CanvasSession;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 public class CanvasDatabase {
 
     private static Connection CONNECTION = null;
+    private static PreparedStatement INSERT_STATEMENT = null;
+    private static PreparedStatement BACKUP_STATEMENT = null;
+    private static PreparedStatement JOURNAL_STATEMENT = null;
+    private static PreparedStatement COMPACT_STATEMENT = null;
+    private static PreparedStatement HISTORY_STATEMENT = null;
     private static final Logger LOGGER = LogManager.getLogger();
+    static final String DATABASE_URL = "jdbc:sqlite:" + System.getProperty("duocanvas.database", "rplace.db");
+
+    // Canvas blobs: "DUOC" magic, format version, header, palette, owner table, then the painted tiles
+    // (deflated color and owner planes, the color plane as one byte per pixel with a palette).
+    private static final int CANVAS_FORMAT_MAGIC = 0x44554F43;
+    private static final short CANVAS_FORMAT_VERSION = 3;
+    // Before the binary format a canvas was stored as a serialized CanvasSession holding a CanvasPixel grid.
+    private static final String LEGACY_SESSION_CLASS = "org.florian.duocanvas.session.CanvasSession";
+    private static final ObjectInputFilter LEGACY_FILTER = ObjectInputFilter.Config.createFilter(
+            "org.florian.duocanvas.db.CanvasDatabase$LegacyCanvasSession;org.florian.duocanvas.canvas.*;"
+                    + "java.util.HashSet;java.util.Map$Entry;java.lang.String;!*");
 
     public static boolean initiateDatabase() {
         try {
             Class.forName("org.sqlite.JDBC");
-            CONNECTION = DriverManager.getConnection("jdbc:sqlite:rplace.db");
+            CONNECTION = DriverManager.getConnection(DATABASE_URL);
 
             LOGGER.debug("Connection to database initialized.");
 
             Statement stmt = CONNECTION.createStatement();
+            stmt.execute("PRAGMA journal_mode=WAL");
+            stmt.execute("PRAGMA synchronous=NORMAL");
+            // Cluster nodes share the file, writers wait for each other instead of failing.
+            stmt.execute("PRAGMA busy_timeout=5000");
 
             String createStorage = "CREATE TABLE IF NOT EXISTS canvasStorage"
                     + "(id INTEGER PRIMARY KEY AUTOINCREMENT,"
                     + "canvas_code TEXT NOT NULL,"
-                    + "canvas_data BLOB NOT NULL"
+                    + "canvas_data BLOB NOT NULL,"
+                    + "journal_seq INTEGER NOT NULL DEFAULT 0,"
+                    + "draw_rate INTEGER,"
+                    + "draw_burst INTEGER"
                     + ")";
             stmt.executeUpdate(createStorage);
+            if (!hasColumn(stmt, "canvasStorage", "journal_seq")) {
+                stmt.executeUpdate("ALTER TABLE canvasStorage ADD COLUMN journal_seq INTEGER NOT NULL DEFAULT 0");
+            }
+            // NULL limits fall back to the server defaults.
+            if (!hasColumn(stmt, "canvasStorage", "draw_rate")) {
+                stmt.executeUpdate("ALTER TABLE canvasStorage ADD COLUMN draw_rate INTEGER");
+                stmt.executeUpdate("ALTER TABLE canvasStorage ADD COLUMN draw_burst INTEGER");
+            }
+            // Every lookup and save goes by code. Older databases may hold duplicates, the newest row wins.
+            if (!hasIndex(stmt, "canvasStorage_code")) {
+                stmt.executeUpdate("DELETE FROM canvasStorage WHERE id NOT IN"
+                        + " (SELECT MAX(id) FROM canvasStorage GROUP BY canvas_code)");
+                stmt.executeUpdate("CREATE UNIQUE INDEX canvasStorage_code ON canvasStorage (canvas_code)");
+            }
+
+            // Sequences only grow per canvas: cluster nodes count independently and hand canvases over.
+            String createJournal = "CREATE TABLE IF NOT EXISTS drawJournal"
+                    + "(canvas_code TEXT NOT NULL,"
+                    + "seq INTEGER NOT NULL,"
+                    + "x INTEGER NOT NULL,"
+                    + "y INTEGER NOT NULL,"
+                    + "color INTEGER NOT NULL,"
+                    + "owner TEXT,"
+                    + "PRIMARY KEY (canvas_code, seq)"
+                    + ") WITHOUT ROWID";
+            stmt.executeUpdate(createJournal);
+            HistoryDatabase.createTables(stmt);
+
+            ResultSet lastSequence = stmt.executeQuery(
+                    "SELECT MAX(IFNULL((SELECT MAX(seq) FROM drawJournal), 0),"
+                            + " IFNULL((SELECT MAX(journal_seq) FROM canvasStorage), 0))"
+            );
+            DrawJournal.initiate(lastSequence.next() ? lastSequence.getLong(1) : 0);
+            lastSequence.close();
             stmt.close();
+
+            INSERT_STATEMENT = CONNECTION.prepareStatement(
+                    "INSERT INTO canvasStorage (canvas_code, canvas_data, draw_rate, draw_burst) VALUES (?, ?, ?, ?)"
+                            + " ON CONFLICT (canvas_code) DO NOTHING"
+            );
+            // Only an update: canvases are inserted before their code is handed out, a backup never adds one.
+            BACKUP_STATEMENT = CONNECTION.prepareStatement(
+                    "UPDATE canvasStorage SET canvas_data = ?, journal_seq = ? WHERE canvas_code = ?"
+            );
+            JOURNAL_STATEMENT = CONNECTION.prepareStatement(
+                    "INSERT INTO drawJournal (seq, canvas_code, x, y, color, owner) VALUES (?, ?, ?, ?, ?, ?)"
+            );
+            COMPACT_STATEMENT = CONNECTION.prepareStatement(
+                    "DELETE FROM drawJournal WHERE canvas_code = ? AND seq <= ?"
+            );
+            HISTORY_STATEMENT = CONNECTION.prepareStatement(
+                    "INSERT INTO drawHistory (canvas_code, seq, time, x, y, color, owner) VALUES (?, ?, ?, ?, ?, ?, ?)"
+            );
+            HistoryDatabase.initiate();
             return true;
         } catch (Exception e) {
             LOGGER.debug(e);
@@ -37,36 +125,41 @@ public class CanvasDatabase {
         }
     }
 
-    public static void addCanvasToDatabase(CanvasSession session) throws IOException {
-
+    /* Returns false if the code is already taken (or the insert failed). */
+    public static synchronized boolean addCanvasToDatabase(CanvasSession session) throws IOException {
+        long start = System.nanoTime();
         String canvasCode = session.canvasCode;
-        byte[] canvasData = getCanvasDataAsBytes(session); // TODO !
-
+        byte[] canvasData = getCanvasDataAsBytes(session);
 
         try {
-            String sql = "INSERT INTO canvasStorage (canvas_code, canvas_data) VALUES (?, ?)";
-
-            PreparedStatement preparedStmt = CONNECTION.prepareStatement(sql);
-            preparedStmt.setString(1, canvasCode);
-            preparedStmt.setBytes(2, canvasData);
-
-            preparedStmt.executeUpdate();
-            preparedStmt.close();
+            INSERT_STATEMENT.setString(1, canvasCode);
+            INSERT_STATEMENT.setBytes(2, canvasData);
+            INSERT_STATEMENT.setInt(3, session.getDrawLimiter().getRate());
+            INSERT_STATEMENT.setInt(4, session.getDrawLimiter().getBurst());
+
+            if (INSERT_STATEMENT.executeUpdate() == 0) {
+                LOGGER.debug("Canvas code {} is already taken.", canvasCode);
+                return false;
+            }
         } catch (Exception e) {
             LOGGER.debug(e);
-            return;
+            return false;
         }
+        Metrics.DATABASE_INSERT.recordSince(start);
 
         LOGGER.debug("Canvas with code: {} has been successfully added.", canvasCode);
+        return true;
     }
 
-    public static void removeCanvasFromDatabase(String canvasCode) {
+    public static synchronized void removeCanvasFromDatabase(String canvasCode) {
+        // Unregistered first, the next backup would store the resident copy again.
+        Main.ACTIVE_CANVAS_SESSIONS.remove(canvasCode);
         try {
             String deleteCanvas = "DELETE FROM canvasStorage WHERE canvas_code = ?";
             PreparedStatement preparedSTMT = CONNECTION.prepareStatement(deleteCanvas);
 
             preparedSTMT.setString(1, canvasCode);
-            preparedSTMT.executeUpdate(deleteCanvas);
+            preparedSTMT.executeUpdate();
             preparedSTMT.close();
         } catch (Exception e) {
             LOGGER.debug(e);
@@ -74,80 +167,439 @@ public class CanvasDatabase {
     }
 
     public static void backupCanvasData() throws IOException {
+        backupCanvasSessions(Main.ACTIVE_CANVAS_SESSIONS.values());
+    }
 
-        for (CanvasSession session : Main.ACTIVE_CANVAS_SESSIONS.values()) {
+    public static synchronized void backupCanvasSessions(Collection<CanvasSession> sessions) throws IOException {
+        long start = System.nanoTime();
+        List<CanvasSession> dirtySessions = new ArrayList<>();
+        List<byte[]> dirtyData = new ArrayList<>();
+        List<Long> journalSequences = new ArrayList<>();
 
-            LOGGER.debug(session.canvasCode);
+        for (CanvasSession session : sessions) {
+            // Replicas mirror another node's canvas, that node backs it up.
+            if (session.getReplication().isReplica()) {
+                continue;
+            }
+            if (session.clearDirty()) {
+                // Read before the pixels are copied: every journal entry up to here is in the snapshot.
+                journalSequences.add(DrawJournal.currentSequence());
+                dirtySessions.add(session);
+                dirtyData.add(getCanvasDataAsBytes(session));
+            }
+        }
+        if (dirtySessions.isEmpty()) {
+            return;
+        }
 
-            try {
+        try {
+            CONNECTION.setAutoCommit(false);
+
+            for (int i = 0; i < dirtySessions.size(); i++) {
+                CanvasSession session = dirtySessions.get(i);
                 String canvasCode = session.canvasCode;
-                byte[] canvasData = getCanvasDataAsBytes(session);
+                BACKUP_STATEMENT.setBytes(1, dirtyData.get(i));
+                BACKUP_STATEMENT.setLong(2, journalSequences.get(i));
+                BACKUP_STATEMENT.setString(3, canvasCode);
+                BACKUP_STATEMENT.addBatch();
+
+                COMPACT_STATEMENT.setString(1, canvasCode);
+                COMPACT_STATEMENT.setLong(2, journalSequences.get(i));
+                COMPACT_STATEMENT.addBatch();
+            }
+            BACKUP_STATEMENT.executeBatch();
+            COMPACT_STATEMENT.executeBatch();
+            CONNECTION.commit();
+
+            Metrics.DATABASE_BACKUP.recordSince(start);
+            Metrics.BACKED_UP_CANVASES.add(dirtySessions.size());
+            LOGGER.debug("Backed up {} canvases.", dirtySessions.size());
+        } catch (SQLException e) {
+            LOGGER.debug(e);
+            try {
+                CONNECTION.rollback();
+            } catch (SQLException rollbackException) {
+                LOGGER.debug(rollbackException);
+            }
+            dirtySessions.forEach(CanvasSession::markDirty);
+        } finally {
+            try {
+                CONNECTION.setAutoCommit(true);
+            } catch (SQLException e) {
+                LOGGER.debug(e);
+            }
+        }
+    }
 
-                String getResults = "SELECT id FROM canvasStorage WHERE canvas_code = ?";
-                PreparedStatement preparedResults = CONNECTION.prepareStatement(getResults);
-                preparedResults.setString(1, canvasCode);
+    static synchronized boolean appendJournalEntries(List<DrawJournal.Entry> entries) {
+        long start = System.nanoTime();
+        try {
+            CONNECTION.setAutoCommit(false);
+            for (DrawJournal.Entry entry : entries) {
+                JOURNAL_STATEMENT.setLong(1, entry.sequence());
+                JOURNAL_STATEMENT.setString(2, entry.canvasCode());
+                JOURNAL_STATEMENT.setInt(3, entry.x());
+                JOURNAL_STATEMENT.setInt(4, entry.y());
+                JOURNAL_STATEMENT.setInt(5, entry.color());
+                JOURNAL_STATEMENT.setString(6, entry.owner());
+                JOURNAL_STATEMENT.addBatch();
+
+                HISTORY_STATEMENT.setString(1, entry.canvasCode());
+                HISTORY_STATEMENT.setLong(2, entry.sequence());
+                HISTORY_STATEMENT.setLong(3, entry.time());
+                HISTORY_STATEMENT.setInt(4, entry.x());
+                HISTORY_STATEMENT.setInt(5, entry.y());
+                HISTORY_STATEMENT.setInt(6, entry.color());
+                HISTORY_STATEMENT.setString(7, entry.owner());
+                HISTORY_STATEMENT.addBatch();
+            }
+            JOURNAL_STATEMENT.executeBatch();
+            HISTORY_STATEMENT.executeBatch();
+            CONNECTION.commit();
+            Metrics.DATABASE_JOURNAL_APPEND.recordSince(start);
+            return true;
+        } catch (SQLException e) {
+            LOGGER.debug(e);
+            try {
+                CONNECTION.rollback();
+            } catch (SQLException rollbackException) {
+                LOGGER.debug(rollbackException);
+            }
+            return false;
+        } finally {
+            try {
+                CONNECTION.setAutoCommit(true);
+            } catch (SQLException e) {
+                LOGGER.debug(e);
+            }
+        }
+    }
 
-                ResultSet results = preparedResults.executeQuery();
+    /* Re-applies the draws that happened after the canvas' last backup. */
+    public static synchronized int replayJournal(CanvasSession session) {
+        long start = System.nanoTime();
+        int replayed = 0;
+        String replayQuery = "SELECT x, y, color, owner FROM drawJournal"
+                + " WHERE canvas_code = ?"
+                + " AND seq > IFNULL((SELECT journal_seq FROM canvasStorage WHERE canvas_code = ?), 0)"
+                + " ORDER BY seq";
+        try (PreparedStatement preparedStmt = CONNECTION.prepareStatement(replayQuery)) {
+            preparedStmt.setString(1, session.canvasCode);
+            preparedStmt.setString(2, session.canvasCode);
+
+            ResultSet results = preparedStmt.executeQuery();
+            while (results.next()) {
+                session.addPixelToCanvas(
+                        results.getInt("x"), results.getInt("y"), results.getInt("color"), results.getString("owner")
+                );
+                replayed++;
+            }
+        } catch (Exception e) {
+            LOGGER.debug(e);
+        }
+        Metrics.DATABASE_JOURNAL_REPLAY.recordSince(start);
+        if (replayed > 0) {
+            LOGGER.debug("Replayed {} journaled draws for {}.", replayed, session.canvasCode);
+        }
+        return replayed;
+    }
 
-                if (results.next()) {
+    /* The highest sequence any node wrote for the canvas. */
+    public static synchronized long getLastSequence(String canvasCode) {
+        String lastSequenceQuery = "SELECT MAX("
+                + "IFNULL((SELECT MAX(seq) FROM drawJournal WHERE canvas_code = ?), 0),"
+                + " IFNULL((SELECT MAX(seq) FROM drawHistory WHERE canvas_code = ?), 0),"
+                + " IFNULL((SELECT MAX(journal_seq) FROM canvasStorage WHERE canvas_code = ?), 0))";
+        try (PreparedStatement preparedStmt = CONNECTION.prepareStatement(lastSequenceQuery)) {
+            preparedStmt.setString(1, canvasCode);
+            preparedStmt.setString(2, canvasCode);
+            preparedStmt.setString(3, canvasCode);
 
-                    String backupCanvas = "UPDATE canvasStorage SET canvas_data = ? WHERE canvas_code = ?";
-                    PreparedStatement preparedStmt = CONNECTION.prepareStatement(backupCanvas);
+            ResultSet results = preparedStmt.executeQuery();
+            return results.next() ? results.getLong(1) : 0;
+        } catch (Exception e) {
+            LOGGER.debug(e);
+            return 0;
+        }
+    }
 
-                    preparedStmt.setBytes(1, canvasData);
-                    preparedStmt.setString(2, canvasCode);
-                    preparedStmt.executeUpdate();
-                    preparedStmt.close();
-                } else {
-                    Main.ACTIVE_CANVAS_SESSIONS.remove(canvasCode);
+    public static synchronized boolean canvasExists(String canvasCode) {
+        try (PreparedStatement preparedStmt = CONNECTION.prepareStatement(
+                "SELECT 1 FROM canvasStorage WHERE canvas_code = ?")) {
+            preparedStmt.setString(1, canvasCode);
+            return preparedStmt.executeQuery().next();
+        } catch (Exception e) {
+            LOGGER.debug(e);
+            return false;
+        }
+    }
+
+    private static boolean hasIndex(Statement stmt, String index) throws SQLException {
+        try (ResultSet definition = stmt.executeQuery(
+                "SELECT 1 FROM sqlite_master WHERE type = 'index' AND name = '" + index + "'")) {
+            return definition.next();
+        }
+    }
+
+    private static boolean hasColumn(Statement stmt, String table, String column) throws SQLException {
+        try (ResultSet columns = stmt.executeQuery("PRAGMA table_info(" + table + ")")) {
+            while (columns.next()) {
+                if (column.equals(columns.getString("name"))) {
+                    return true;
                 }
-                preparedResults.close();
-            } catch (Exception e) {
-                LOGGER.debug(e);
             }
         }
+        return false;
     }
 
     public static byte[] getCanvasDataAsBytes(CanvasSession session) throws IOException {
 
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        ObjectOutputStream objectOutputStream = new ObjectOutputStream(byteArrayOutputStream);
+        PixelStore pixels = session.getCanvasData();
+        Palette palette = pixels.getPalette();
+        int tileSize = PixelStore.TILE_SIZE;
+
+        // Tiles first: the owner table is read after them, so it holds every id they use.
+        ByteArrayOutputStream tileBytes = new ByteArrayOutputStream();
+        int tileCount = 0;
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (DataOutputStream body = new DataOutputStream(
+                new DeflaterOutputStream(tileBytes, deflater, 64 * 1024))) {
+            int[] colors = new int[tileSize * tileSize];
+            int[] owners = new int[tileSize * tileSize];
+            byte[] indexes = new byte[tileSize * tileSize];
+            ByteBuffer row = ByteBuffer.allocate(tileSize * Integer.BYTES);
+            for (int tile = 0; tile < pixels.getTileCount(); tile++) {
+                if (pixels.copyTile(tile, colors, owners)) {
+                    body.writeInt(tile);
+                    if (palette == null) {
+                        writePlane(body, row, colors, tileSize, tileSize);
+                    } else {
+                        for (int i = 0; i < colors.length; i++) {
+                            indexes[i] = (byte) (colors[i] == PixelStore.EMPTY ? 0 : palette.indexOf(colors[i]) + 1);
+                        }
+                        body.write(indexes);
+                    }
+                    writePlane(body, row, owners, tileSize, tileSize);
+                    tileCount++;
+                }
+            }
+        } finally {
+            deflater.end();
+        }
+        List<String> ownerTable = pixels.getOwnerTable();
+
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(tileBytes.size() + 1024);
+        DataOutputStream header = new DataOutputStream(byteArrayOutputStream);
+
+        header.writeInt(CANVAS_FORMAT_MAGIC);
+        header.writeShort(CANVAS_FORMAT_VERSION);
+        header.writeUTF(session.canvasCode);
+        header.writeInt(pixels.getWidth());
+        header.writeInt(pixels.getHeight());
+        header.writeInt(tileSize);
+        header.writeInt(palette == null ? 0 : palette.size());
+        for (int i = 0; palette != null && i < palette.size(); i++) {
+            header.writeInt(palette.colorAt(i));
+        }
+        header.writeInt(ownerTable.size() - 1);
+        for (int i = 1; i < ownerTable.size(); i++) {
+            header.writeUTF(ownerTable.get(i));
+        }
+        header.writeInt(tileCount);
+        header.flush();
+        tileBytes.writeTo(byteArrayOutputStream);
+        return byteArrayOutputStream.toByteArray();
+    }
 
-        objectOutputStream.writeObject(session); // TODO: <--!
-        objectOutputStream.flush();
-        objectOutputStream.close();
+    public static CanvasSession getCanvasDataFromBytes(byte[] canvasBytes) throws IOException {
 
-        return byteArrayOutputStream.toByteArray();
+        if (canvasBytes.length >= 2 && ByteBuffer.wrap(canvasBytes).getShort() == ObjectStreamConstants.STREAM_MAGIC) {
+            return readLegacyCanvas(canvasBytes);
+        }
+        DataInputStream header = new DataInputStream(new ByteArrayInputStream(canvasBytes));
+
+        if (header.readInt() != CANVAS_FORMAT_MAGIC) {
+            throw new IOException("Canvas data is not in the DuoCanvas binary format.");
+        }
+        short version = header.readShort();
+        if (version != CANVAS_FORMAT_VERSION) {
+            throw new IOException("Unsupported canvas format version: " + version);
+        }
+        String canvasCode = header.readUTF();
+        int width = header.readInt();
+        int height = header.readInt();
+        int tileSize = header.readInt();
+        int[] paletteColors = new int[header.readInt()];
+        for (int i = 0; i < paletteColors.length; i++) {
+            paletteColors[i] = header.readInt();
+        }
+        Palette palette = paletteColors.length == 0 ? null : new Palette(paletteColors);
+
+        int ownerCount = header.readInt();
+        List<String> ownerNames = new ArrayList<>(ownerCount);
+        for (int i = 0; i < ownerCount; i++) {
+            ownerNames.add(header.readUTF());
+        }
+        int tileCount = header.readInt();
+
+        PixelStore pixels = PixelStore.restore(width, height, palette, ownerNames);
+        Inflater inflater = new Inflater();
+        try (DataInputStream body = new DataInputStream(new InflaterInputStream(header, inflater, 64 * 1024))) {
+            readTiles(body, pixels, tileSize, tileCount);
+        } finally {
+            inflater.end();
+        }
+        return new CanvasSession(canvasCode, pixels);
     }
 
-    public static CanvasSession getCanvasDataFromBytes(byte[] canvasBytes) throws IOException, ClassNotFoundException {
+    /* Marked dirty, so the next backup stores the canvas in the binary format. */
+    private static CanvasSession readLegacyCanvas(byte[] canvasBytes) throws IOException {
+        LegacyCanvasSession legacy;
+        try (ObjectInputStream in = new LegacyObjectInputStream(new ByteArrayInputStream(canvasBytes))) {
+            in.setObjectInputFilter(LEGACY_FILTER);
+            legacy = (LegacyCanvasSession) in.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Canvas data is not a legacy CanvasSession.", e);
+        }
 
-        ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(canvasBytes);
-        ObjectInputStream objectInputStream = new ObjectInputStream(byteArrayInputStream);
+        // The grid was indexed [x][y].
+        CanvasPixel[][] grid = legacy.canvasData;
+        PixelStore pixels = new PixelStore(grid.length, grid.length == 0 ? 0 : grid[0].length, null);
+        for (int x = 0; x < grid.length; x++) {
+            for (int y = 0; y < grid[x].length; y++) {
+                CanvasPixel pixel = grid[x][y];
+                if (pixel == null) {
+                    continue;
+                }
+                try {
+                    pixels.setPixel(x, y, PixelStore.parseColor(pixel.getColor()), pixel.getOwner());
+                } catch (IllegalArgumentException e) {
+                    LOGGER.debug(e);
+                }
+            }
+        }
+        CanvasSession session = new CanvasSession(legacy.canvasCode, pixels);
+        session.markDirty();
+        LOGGER.debug("Converted legacy canvas {}.", legacy.canvasCode);
+        return session;
+    }
 
-        return (CanvasSession) objectInputStream.readObject();
+    /* The serialized fields of the old CanvasSession. */
+    private static final class LegacyCanvasSession implements Serializable {
+        private String canvasCode;
+        private Set<String> participants;
+        private CanvasPixel[][] canvasData;
     }
 
-    public static byte[] getCanvasBytesFromDatabase(String canvasCode) {
-        try {
-            String selectQuery = "SELECT canvas_data FROM canvasStorage WHERE canvas_code = ?";
-            PreparedStatement preparedStmt = CONNECTION.prepareStatement(selectQuery);
+    /* Reads the old CanvasSession as a LegacyCanvasSession, the fields are the same. */
+    private static final class LegacyObjectInputStream extends ObjectInputStream {
+
+        LegacyObjectInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+            ObjectStreamClass descriptor = super.readClassDescriptor();
+            return LEGACY_SESSION_CLASS.equals(descriptor.getName())
+                    ? ObjectStreamClass.lookup(LegacyCanvasSession.class)
+                    : descriptor;
+        }
+    }
+
+    /* The tile size is read from the data, so canvases survive a change of duocanvas.tileSize. */
+    private static void readTiles(DataInputStream in, PixelStore pixels, int tileSize, int tileCount)
+            throws IOException {
+        int tilesX = (pixels.getWidth() + tileSize - 1) / tileSize;
+        Palette palette = pixels.getPalette();
+        int[] colors = new int[tileSize * tileSize];
+        int[] owners = new int[tileSize * tileSize];
+        byte[] indexes = new byte[tileSize * tileSize];
+        ByteBuffer row = ByteBuffer.allocate(tileSize * Integer.BYTES);
+        for (int t = 0; t < tileCount; t++) {
+            int tile = in.readInt();
+            if (palette == null) {
+                readPlane(in, row, colors, tileSize, tileSize);
+            } else {
+                in.readFully(indexes);
+                for (int i = 0; i < indexes.length; i++) {
+                    int index = indexes[i] & 0xFF;
+                    colors[i] = index == 0 ? PixelStore.EMPTY : palette.colorAt(index - 1);
+                }
+            }
+            readPlane(in, row, owners, tileSize, tileSize);
+
+            int startX = (tile % tilesX) * tileSize;
+            int startY = (tile / tilesX) * tileSize;
+            for (int i = 0; i < colors.length; i++) {
+                int x = startX + i % tileSize;
+                int y = startY + i / tileSize;
+                if (x < pixels.getWidth() && y < pixels.getHeight()) {
+                    pixels.restorePixel(x, y, colors[i], owners[i]);
+                }
+            }
+        }
+    }
+
+    private static void writePlane(OutputStream out, ByteBuffer row, int[] plane, int width, int height)
+            throws IOException {
+        for (int y = 0; y < height; y++) {
+            row.clear();
+            row.asIntBuffer().put(plane, y * width, width);
+            out.write(row.array(), 0, row.capacity());
+        }
+    }
+
+    private static void readPlane(InputStream in, ByteBuffer row, int[] plane, int width, int height)
+            throws IOException {
+        for (int y = 0; y < height; y++) {
+            row.clear();
+            if (in.readNBytes(row.array(), 0, row.capacity()) != row.capacity()) {
+                throw new EOFException("Canvas data is truncated.");
+            }
+            row.asIntBuffer().get(plane, y * width, width);
+        }
+    }
+
+    public static synchronized byte[] getCanvasBytesFromDatabase(String canvasCode) {
+        long start = System.nanoTime();
+        String selectQuery = "SELECT canvas_data FROM canvasStorage WHERE canvas_code = ?";
+        try (PreparedStatement preparedStmt = CONNECTION.prepareStatement(selectQuery)) {
             preparedStmt.setString(1, canvasCode);
 
             ResultSet results = preparedStmt.executeQuery();
 
             if (results.next()) {
-                return results.getBytes("canvas_data");
+                byte[] canvasData = results.getBytes("canvas_data");
+                Metrics.DATABASE_LOAD.recordSince(start);
+                return canvasData;
             } else {
                 LOGGER.debug("{} doesn't exist.", canvasCode);
             }
-            preparedStmt.close();
         } catch (Exception e) {
             LOGGER.debug(e);
         }
         return null;
     }
 
+    public static synchronized void loadDrawLimits(CanvasSession session) {
+        String selectLimits = "SELECT draw_rate, draw_burst FROM canvasStorage WHERE canvas_code = ?";
+        try (PreparedStatement preparedStmt = CONNECTION.prepareStatement(selectLimits)) {
+            preparedStmt.setString(1, session.canvasCode);
+
+            ResultSet results = preparedStmt.executeQuery();
+            if (results.next() && results.getObject("draw_rate") != null) {
+                // A 0 means the creator asked for no limits, those canvases follow the server default.
+                int drawRate = results.getInt("draw_rate");
+                if (drawRate > 0) {
+                    session.getDrawLimiter().setClientLimits(drawRate, results.getInt("draw_burst"));
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.debug(e);
+        }
+    }
+
     public static ArrayList<String> getCanvasCodesFromDatabase() {
 
         ArrayList<String> canvasCodes = new ArrayList<>();
@@ -0,0 +1,68 @@
+package org.florian.duocanvas.db;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Append-only log of draws between two canvas backups.
+ * Draws are only queued on the socket thread; a background writer commits the queue
+ * to the drawJournal table every FLUSH_MILLIS in one transaction (group commit).
+ * Each backup records the last sequence it contains and drops the older entries.
+ * Every flush also copies the entries into drawHistory, which is never compacted.
+ */
+public class DrawJournal {
+
+    public static final int FLUSH_MILLIS = Integer.getInteger("duocanvas.journalFlush", 50);
+
+    public record Entry(long sequence, long time, String canvasCode, int x, int y, int color, String owner) {
+    }
+
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+    private static volatile long committedSequence;
+    private static final ConcurrentLinkedQueue<Entry> QUEUE = new ConcurrentLinkedQueue<>();
+    private static final List<Entry> PENDING = new ArrayList<>();
+
+    static void initiate(long lastSequence) {
+        SEQUENCE.set(lastSequence);
+        committedSequence = lastSequence;
+    }
+
+    /* Must be called after the pixel was written, so every snapshot taken later contains it. */
+    public static void append(String canvasCode, int x, int y, int color, String owner) {
+        QUEUE.add(new Entry(SEQUENCE.incrementAndGet(), System.currentTimeMillis(), canvasCode, x, y, color, owner));
+    }
+
+    public static long currentSequence() {
+        return SEQUENCE.get();
+    }
+
+    /* Continues above a sequence written by another node, called after flushing. */
+    public static synchronized void advanceTo(long sequence) {
+        long previous = SEQUENCE.getAndAccumulate(sequence, Math::max);
+        if (previous < sequence && committedSequence == previous) {
+            committedSequence = sequence;
+        }
+    }
+
+    /* Draws appended but not committed yet. */
+    public static long backlog() {
+        return Math.max(0, SEQUENCE.get() - committedSequence);
+    }
+
+    public static synchronized void flush() {
+        Entry entry;
+        while ((entry = QUEUE.poll()) != null) {
+            PENDING.add(entry);
+        }
+        if (PENDING.isEmpty()) {
+            return;
+        }
+        // On failure the entries stay pending and go out with the next flush.
+        if (CanvasDatabase.appendJournalEntries(PENDING)) {
+            committedSequence = Math.max(committedSequence, PENDING.getLast().sequence());
+            PENDING.clear();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package org.florian.duocanvas.db;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.sql.*;
+
+/**
+ * Storage for canvas history: one delta row per draw plus periodic keyframes.
+ * Uses its own connection, so long history reads don't block the journal and backups (WAL allows both).
+ */
+public class HistoryDatabase {
+
+    private static Connection CONNECTION = null;
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    public record Keyframe(long sequence, long time, byte[] canvasData) {
+    }
+
+    public interface DeltaConsumer {
+        void accept(long sequence, long time, int x, int y, int color) throws IOException;
+    }
+
+    public interface PreviousDrawConsumer {
+        void accept(int cell, int color, String owner);
+    }
+
+    static void createTables(Statement stmt) throws SQLException {
+        String createHistory = "CREATE TABLE IF NOT EXISTS drawHistory"
+                + "(canvas_code TEXT NOT NULL,"
+                + "seq INTEGER NOT NULL,"
+                + "time INTEGER NOT NULL,"
+                + "x INTEGER NOT NULL,"
+                + "y INTEGER NOT NULL,"
+                + "color INTEGER NOT NULL,"
+                + "owner TEXT,"
+                + "PRIMARY KEY (canvas_code, seq)"
+                + ") WITHOUT ROWID";
+        stmt.executeUpdate(createHistory);
+        // Reverts look up the draws of single cells.
+        stmt.executeUpdate("CREATE INDEX IF NOT EXISTS drawHistory_cell ON drawHistory (canvas_code, y, x, seq)");
+
+        String createKeyframes = "CREATE TABLE IF NOT EXISTS historyKeyframes"
+                + "(canvas_code TEXT NOT NULL,"
+                + "seq INTEGER NOT NULL,"
+                + "time INTEGER NOT NULL,"
+                + "canvas_data BLOB NOT NULL,"
+                + "PRIMARY KEY (canvas_code, seq)"
+                + ")";
+        stmt.executeUpdate(createKeyframes);
+        stmt.executeUpdate("CREATE INDEX IF NOT EXISTS historyKeyframes_time ON historyKeyframes (canvas_code, time)");
+    }
+
+    static void initiate() throws SQLException {
+        CONNECTION = DriverManager.getConnection(CanvasDatabase.DATABASE_URL);
+        try (Statement stmt = CONNECTION.createStatement()) {
+            stmt.execute("PRAGMA busy_timeout=5000");
+        }
+    }
+
+    /* Latest keyframe taken at or before the given time, or null if there is none. */
+    public static synchronized Keyframe getKeyframe(String canvasCode, long time) throws SQLException {
+        String selectKeyframe = "SELECT seq, time, canvas_data FROM historyKeyframes"
+                + " WHERE canvas_code = ? AND time <= ? ORDER BY time DESC, seq DESC LIMIT 1";
+        try (PreparedStatement preparedStmt = CONNECTION.prepareStatement(selectKeyframe)) {
+            preparedStmt.setString(1, canvasCode);
+            preparedStmt.setLong(2, time);
+
+            ResultSet results = preparedStmt.executeQuery();
+            if (results.next()) {
+                return new Keyframe(results.getLong("seq"), results.getLong("time"), results.getBytes("canvas_data"));
+            }
+        }
+        return null;
+    }
+
+    public static synchronized void addKeyframe(String canvasCode, long sequence, long time, byte[] canvasData)
+            throws SQLException {
+        String insertKeyframe = "INSERT OR REPLACE INTO historyKeyframes (canvas_code, seq, time, canvas_data)"
+                + " VALUES (?, ?, ?, ?)";
+        try (PreparedStatement preparedStmt = CONNECTION.prepareStatement(insertKeyframe)) {
+            preparedStmt.setString(1, canvasCode);
+            preparedStmt.setLong(2, sequence);
+            preparedStmt.setLong(3, time);
+            preparedStmt.setBytes(4, canvasData);
+            preparedStmt.executeUpdate();
+        }
+        LOGGER.debug("Keyframe {} written for {}.", sequence, canvasCode);
+    }
+
+    public static synchronized int countDeltas(String canvasCode, long afterSequence) throws SQLException {
+        String countDeltas = "SELECT COUNT(*) FROM drawHistory WHERE canvas_code = ? AND seq > ?";
+        try (PreparedStatement preparedStmt = CONNECTION.prepareStatement(countDeltas)) {
+            preparedStmt.setString(1, canvasCode);
+            preparedStmt.setLong(2, afterSequence);
+
+            ResultSet results = preparedStmt.executeQuery();
+            return results.next() ? results.getInt(1) : 0;
+        }
+    }
+
+    /* Streams the deltas after the given sequence up to (and including) untilTime, in draw order. */
+    public static synchronized void forEachDelta(String canvasCode, long afterSequence, long untilTime,
+                                                 DeltaConsumer consumer) throws SQLException, IOException {
+        String selectDeltas = "SELECT seq, time, x, y, color FROM drawHistory"
+                + " WHERE canvas_code = ? AND seq > ? AND time <= ? ORDER BY seq";
+        try (PreparedStatement preparedStmt = CONNECTION.prepareStatement(selectDeltas)) {
+            preparedStmt.setString(1, canvasCode);
+            preparedStmt.setLong(2, afterSequence);
+            preparedStmt.setLong(3, untilTime);
+            preparedStmt.setFetchSize(4096);
+
+            ResultSet results = preparedStmt.executeQuery();
+            while (results.next()) {
+                consumer.accept(
+                        results.getLong(1), results.getLong(2), results.getInt(3), results.getInt(4), results.getInt(5)
+                );
+            }
+        }
+    }
+
+    /*
+     * For every cell the last draw there by anyone but excludedOwner, including draws without owner.
+     * Cells nobody else drew on are left out. One lookup per cell through drawHistory_cell.
+     */
+    public static synchronized void forEachPreviousDraw(String canvasCode, int[] xs, int[] ys, String excludedOwner,
+                                                        PreviousDrawConsumer consumer) throws SQLException {
+        String selectPrevious = "SELECT color, owner FROM drawHistory"
+                + " WHERE canvas_code = ? AND y = ? AND x = ? AND (owner IS NULL OR owner <> ?)"
+                + " ORDER BY seq DESC LIMIT 1";
+        try (PreparedStatement preparedStmt = CONNECTION.prepareStatement(selectPrevious)) {
+            preparedStmt.setString(1, canvasCode);
+            preparedStmt.setString(4, excludedOwner);
+            for (int i = 0; i < xs.length; i++) {
+                preparedStmt.setInt(2, ys[i]);
+                preparedStmt.setInt(3, xs[i]);
+                try (ResultSet results = preparedStmt.executeQuery()) {
+                    if (results.next()) {
+                        consumer.accept(i, results.getInt(1), results.getString(2));
+                    }
+                }
+            }
+        }
+    }
+}
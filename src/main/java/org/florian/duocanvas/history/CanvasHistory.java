@@ -0,0 +1,123 @@
+package org.florian.duocanvas.history;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.florian.duocanvas.Main;
+import org.florian.duocanvas.canvas.PixelStore;
+import org.florian.duocanvas.db.CanvasDatabase;
+import org.florian.duocanvas.db.HistoryDatabase;
+import org.florian.duocanvas.session.CanvasSession;
+import org.florian.duocanvas.session.ImageCache;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.SQLException;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Time travel over the drawHistory deltas.
+ * The state at any time is the latest keyframe before it plus the deltas after that keyframe,
+ * so a lookup costs one keyframe decode and at most KEYFRAME_INTERVAL deltas.
+ */
+public class CanvasHistory {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    static final int KEYFRAME_INTERVAL = Integer.getInteger("duocanvas.keyframeInterval", 10_000);
+    // Deltas younger than this may still sit in the journal queue, keyframes never include them.
+    static final long KEYFRAME_SETTLE_MILLIS = 5_000;
+    public static final int MAX_TIMELAPSE_FRAMES = 1_000;
+
+    public static PixelStore stateAt(CanvasSession session, long time) throws SQLException, IOException {
+        HistoryDatabase.Keyframe keyframe = HistoryDatabase.getKeyframe(session.canvasCode, time);
+        PixelStore state = restoreKeyframe(session, keyframe);
+
+        HistoryDatabase.forEachDelta(session.canvasCode, keyframe == null ? 0 : keyframe.sequence(), time,
+                (sequence, deltaTime, x, y, color) -> state.setPixel(x, y, color, null)
+        );
+        return state;
+    }
+
+    public static void writeKeyframes() throws SQLException, IOException {
+        for (CanvasSession session : Main.ACTIVE_CANVAS_SESSIONS.values()) {
+            // The owner's node writes them.
+            if (session.getReplication().isReplica()) {
+                continue;
+            }
+            HistoryDatabase.Keyframe latest = HistoryDatabase.getKeyframe(session.canvasCode, Long.MAX_VALUE);
+            long afterSequence = latest == null ? 0 : latest.sequence();
+            if (HistoryDatabase.countDeltas(session.canvasCode, afterSequence) < KEYFRAME_INTERVAL) {
+                continue;
+            }
+
+            PixelStore state = restoreKeyframe(session, latest);
+            long[] lastDelta = {afterSequence, latest == null ? 0 : latest.time()};
+            HistoryDatabase.forEachDelta(session.canvasCode, afterSequence,
+                    System.currentTimeMillis() - KEYFRAME_SETTLE_MILLIS,
+                    (sequence, time, x, y, color) -> {
+                        state.setPixel(x, y, color, null);
+                        lastDelta[0] = sequence;
+                        lastDelta[1] = time;
+                    }
+            );
+            if (lastDelta[0] != afterSequence) {
+                HistoryDatabase.addKeyframe(session.canvasCode, lastDelta[0], lastDelta[1],
+                        CanvasDatabase.getCanvasDataAsBytes(new CanvasSession(session.canvasCode, state))
+                );
+            }
+        }
+    }
+
+    /*
+     * Streams frames evenly spaced between from and to as a zip of frame-00000.png, frame-00001.png, ...
+     * Each frame is written as soon as the deltas up to its time are applied, in a single pass.
+     */
+    public static int writeTimelapse(CanvasSession session, long from, long to, int frames, OutputStream out)
+            throws SQLException, IOException {
+        if (to < from || frames < 1 || frames > MAX_TIMELAPSE_FRAMES) {
+            throw new IllegalArgumentException("Invalid timelapse range or frame count.");
+        }
+        HistoryDatabase.Keyframe keyframe = HistoryDatabase.getKeyframe(session.canvasCode, from);
+        PixelStore state = restoreKeyframe(session, keyframe);
+        int[] nextFrame = {0};
+
+        try (ZipOutputStream zip = new ZipOutputStream(out)) {
+            // The frames are PNGs already.
+            zip.setLevel(Deflater.NO_COMPRESSION);
+            HistoryDatabase.forEachDelta(session.canvasCode, keyframe == null ? 0 : keyframe.sequence(), to,
+                    (sequence, time, x, y, color) -> {
+                        while (nextFrame[0] < frames && time > frameTime(from, to, frames, nextFrame[0])) {
+                            writeFrame(state, zip, nextFrame[0]++);
+                        }
+                        state.setPixel(x, y, color, null);
+                    }
+            );
+            while (nextFrame[0] < frames) {
+                writeFrame(state, zip, nextFrame[0]++);
+            }
+        }
+        LOGGER.debug("Streamed {} timelapse frames for {}.", frames, session.canvasCode);
+        return frames;
+    }
+
+    private static long frameTime(long from, long to, int frames, int frame) {
+        return frames == 1 ? to : from + (to - from) * frame / (frames - 1);
+    }
+
+    private static void writeFrame(PixelStore state, ZipOutputStream zip, int frame) throws IOException {
+        zip.putNextEntry(new ZipEntry(String.format("frame-%05d.png", frame)));
+        zip.write(ImageCache.renderPng(state));
+        zip.closeEntry();
+    }
+
+    private static PixelStore restoreKeyframe(CanvasSession session, HistoryDatabase.Keyframe keyframe)
+            throws IOException {
+        if (keyframe == null) {
+            PixelStore current = session.getCanvasData();
+            return new PixelStore(current.getWidth(), current.getHeight(), current.getPalette());
+        }
+        return CanvasDatabase.getCanvasDataFromBytes(keyframe.canvasData()).getCanvasData();
+    }
+}
@@ -1,5 +1,5 @@
 package org.florian.duocanvas.json.requests;
 
-public record CanvasRequest(String requestType, String canvasCode) {
+public record CanvasRequest(String requestType, String canvasCode, String protocol, Viewport viewport) {
 
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,6 @@
+package org.florian.duocanvas.json.requests;
+
+public record FillRequest(String requestType, String canvasCode, int x, int y, int width, int height, String color)
+        implements RegionRequest {
+
+}
\ No newline at end of file
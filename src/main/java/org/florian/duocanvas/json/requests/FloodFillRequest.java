@@ -0,0 +1,6 @@
+package org.florian.duocanvas.json.requests;
+
+public record FloodFillRequest(String requestType, String canvasCode, int x, int y, String color)
+        implements RegionRequest {
+
+}
\ No newline at end of file
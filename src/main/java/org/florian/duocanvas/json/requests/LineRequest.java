@@ -0,0 +1,6 @@
+package org.florian.duocanvas.json.requests;
+
+public record LineRequest(String requestType, String canvasCode, int x0, int y0, int x1, int y1, String color)
+        implements RegionRequest {
+
+}
\ No newline at end of file
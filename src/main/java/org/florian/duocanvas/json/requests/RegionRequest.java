@@ -0,0 +1,18 @@
+package org.florian.duocanvas.json.requests;
+
+import com.fasterxml.jackson.annotation.JsonSubTypes;
+import com.fasterxml.jackson.annotation.JsonTypeInfo;
+
+/* Bulk draws, told apart by their requestType. */
+@JsonTypeInfo(use = JsonTypeInfo.Id.NAME, property = "requestType", visible = true)
+@JsonSubTypes({
+        @JsonSubTypes.Type(value = FillRequest.class, name = "fill"),
+        @JsonSubTypes.Type(value = FloodFillRequest.class, name = "floodFill"),
+        @JsonSubTypes.Type(value = LineRequest.class, name = "line"),
+        @JsonSubTypes.Type(value = StampRequest.class, name = "stamp")
+})
+public sealed interface RegionRequest permits FillRequest, FloodFillRequest, LineRequest, StampRequest {
+
+    String canvasCode();
+
+}
\ No newline at end of file
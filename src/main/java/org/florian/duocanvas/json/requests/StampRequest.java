@@ -0,0 +1,7 @@
+package org.florian.duocanvas.json.requests;
+
+/* image holds width * height RGBA pixels, base64 encoded. */
+public record StampRequest(String requestType, String canvasCode, int x, int y, int width, int height, String image)
+        implements RegionRequest {
+
+}
\ No newline at end of file
@@ -0,0 +1,5 @@
+package org.florian.duocanvas.json.requests;
+
+public record Viewport(int x, int y, int width, int height) {
+
+}
\ No newline at end of file
@@ -0,0 +1,5 @@
+package org.florian.duocanvas.json.requests;
+
+public record ViewportRequest(String requestType, String canvasCode, Viewport viewport) {
+
+}
\ No newline at end of file
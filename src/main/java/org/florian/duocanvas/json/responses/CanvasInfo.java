@@ -0,0 +1,7 @@
+package org.florian.duocanvas.json.responses;
+
+import java.util.List;
+
+public record CanvasInfo(String type, int width, int height, int tileSize, List<String> palette) {
+
+}
\ No newline at end of file
@@ -1,5 +1,11 @@
 package org.florian.duocanvas.json.responses;
 
-public record DrawResponse(String type, boolean success) {
+public record DrawResponse(String type, boolean success, String reason, long retryAfter) {
+
+    public static final String RATE_LIMITED = "rateLimited";
+
+    public DrawResponse(String type, boolean success) {
+        this(type, success, null, 0);
+    }
 
 }
\ No newline at end of file
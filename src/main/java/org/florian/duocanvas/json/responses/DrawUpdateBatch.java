@@ -0,0 +1,7 @@
+package org.florian.duocanvas.json.responses;
+
+import java.util.List;
+
+public record DrawUpdateBatch(String type, List<PixelUpdate> updates) {
+
+}
@@ -0,0 +1,6 @@
+package org.florian.duocanvas.json.responses;
+
+import java.util.List;
+
+public record OwnedPixelsResponse(String type, String owner, List<PixelUpdate> pixels) {
+}
@@ -0,0 +1,4 @@
+package org.florian.duocanvas.json.responses;
+
+public record PixelOwnerResponse(String type, int x, int y, String color, String owner) {
+}
@@ -0,0 +1,5 @@
+package org.florian.duocanvas.json.responses;
+
+public record PixelUpdate(int x, int y, String color) {
+
+}
@@ -0,0 +1,4 @@
+package org.florian.duocanvas.json.responses;
+
+public record RevertResponse(String type, String owner, int reverted) {
+}
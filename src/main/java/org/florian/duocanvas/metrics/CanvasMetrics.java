@@ -0,0 +1,144 @@
+package org.florian.duocanvas.metrics;
+
+import org.florian.duocanvas.session.CanvasSession;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Draw, broadcast and snapshot metrics of one canvas, exported with a keyed hash of its code as the canvas label:
+ * the code is all it takes to join and draw, so /metrics must not list them.
+ * They live as long as the canvas is resident, a reloaded canvas starts counting from zero.
+ */
+public class CanvasMetrics {
+
+    // Without a configured key the labels change with every start. With one, an operator can compute a canvas' label.
+    private static final byte[] LABEL_KEY = labelKey(System.getProperty("duocanvas.metricsKey"));
+
+    private final LongAdder draws = new LongAdder();
+    private final LongAdder rejectedDraws = new LongAdder();
+    private final LongAdder rateLimitedDraws = new LongAdder();
+    private final LongAdder broadcastMessages = new LongAdder();
+    private final LongAdder broadcastPixels = new LongAdder();
+    private final Histogram drawDuration = new Histogram();
+    private final Histogram broadcastDuration = new Histogram();
+    private final Histogram snapshotSize = new Histogram();
+    private volatile String label;
+
+    public void recordDraw(long startNanos) {
+        draws.increment();
+        drawDuration.recordSince(startNanos);
+    }
+
+    public void recordRejectedDraw() {
+        rejectedDraws.increment();
+    }
+
+    public void recordRateLimitedDraw() {
+        rateLimitedDraws.increment();
+    }
+
+    /* One fan-out of pixels to the subscribers, messages is the number of queues they were handed to. */
+    public void recordBroadcast(long startNanos, int messages, int pixels) {
+        broadcastDuration.recordSince(startNanos);
+        broadcastMessages.add(messages);
+        broadcastPixels.add(pixels);
+    }
+
+    public void recordSnapshot(long bytes) {
+        snapshotSize.record(bytes);
+    }
+
+    private static byte[] labelKey(String configured) {
+        if (configured != null) {
+            return configured.getBytes(StandardCharsets.UTF_8);
+        }
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        return key;
+    }
+
+    /* The first 8 bytes of HMAC-SHA256(code), computed once per resident canvas. */
+    private static String canvasLabel(CanvasSession session) {
+        CanvasMetrics metrics = session.getMetrics();
+        String label = metrics.label;
+        if (label == null) {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(new SecretKeySpec(LABEL_KEY, "HmacSHA256"));
+                byte[] hash = mac.doFinal(session.canvasCode.getBytes(StandardCharsets.UTF_8));
+                label = ExpositionWriter.label("canvas", HexFormat.of().formatHex(hash, 0, 8));
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+            metrics.label = label;
+        }
+        return label;
+    }
+
+    static void write(ExpositionWriter out, Collection<CanvasSession> sessions) {
+        out.family("duocanvas_canvas_draws_total", "counter", "Draws by result.");
+        for (CanvasSession session : sessions) {
+            CanvasMetrics metrics = session.getMetrics();
+            String canvas = canvasLabel(session);
+            out.sample("duocanvas_canvas_draws_total", canvas + ",result=\"ok\"", metrics.draws.sum());
+            out.sample("duocanvas_canvas_draws_total", canvas + ",result=\"rejected\"", metrics.rejectedDraws.sum());
+            out.sample("duocanvas_canvas_draws_total", canvas + ",result=\"rate_limited\"",
+                    metrics.rateLimitedDraws.sum());
+        }
+
+        out.family("duocanvas_canvas_draw_duration_seconds", "summary", "Time to apply and journal an accepted draw.");
+        for (CanvasSession session : sessions) {
+            out.summary("duocanvas_canvas_draw_duration_seconds", canvasLabel(session),
+                    session.getMetrics().drawDuration, Metrics.NANOS_PER_SECOND);
+        }
+
+        out.family("duocanvas_canvas_broadcast_messages_total", "counter", "Update messages handed to subscribers.");
+        for (CanvasSession session : sessions) {
+            out.sample("duocanvas_canvas_broadcast_messages_total", canvasLabel(session),
+                    session.getMetrics().broadcastMessages.sum());
+        }
+
+        out.family("duocanvas_canvas_broadcast_pixels_total", "counter", "Pixels broadcast to subscribers.");
+        for (CanvasSession session : sessions) {
+            out.sample("duocanvas_canvas_broadcast_pixels_total", canvasLabel(session),
+                    session.getMetrics().broadcastPixels.sum());
+        }
+
+        out.family("duocanvas_canvas_broadcast_duration_seconds", "summary", "Time to fan one update out to all subscribers.");
+        for (CanvasSession session : sessions) {
+            out.summary("duocanvas_canvas_broadcast_duration_seconds", canvasLabel(session),
+                    session.getMetrics().broadcastDuration, Metrics.NANOS_PER_SECOND);
+        }
+
+        out.family("duocanvas_canvas_snapshot_bytes", "summary", "Size of the snapshots sent on join, viewport change and resync.");
+        for (CanvasSession session : sessions) {
+            out.summary("duocanvas_canvas_snapshot_bytes", canvasLabel(session),
+                    session.getMetrics().snapshotSize, 1);
+        }
+
+        out.family("duocanvas_canvas_subscribers", "gauge", "Sockets subscribed to the canvas.");
+        for (CanvasSession session : sessions) {
+            out.sample("duocanvas_canvas_subscribers", canvasLabel(session),
+                    session.getSubscriberCount());
+        }
+
+        out.family("duocanvas_canvas_lagging_subscribers", "gauge", "Subscribers currently dropping updates.");
+        for (CanvasSession session : sessions) {
+            out.sample("duocanvas_canvas_lagging_subscribers", canvasLabel(session),
+                    session.getLaggingSubscriberCount());
+        }
+
+        out.family("duocanvas_canvas_pending_bytes", "gauge", "Bytes queued to the canvas' subscribers but not written yet.");
+        for (CanvasSession session : sessions) {
+            out.sample("duocanvas_canvas_pending_bytes", canvasLabel(session),
+                    session.getPendingBytes());
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package org.florian.duocanvas.metrics;
+
+/**
+ * Builds the Prometheus text exposition format (version 0.0.4).
+ * Every family has to be written in one piece: its header, then all of its samples.
+ */
+class ExpositionWriter {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final StringBuilder out = new StringBuilder(16 * 1024);
+
+    void family(String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    void sample(String name, String labels, double value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+
+    /* Writes a histogram as a summary, values are divided by unit (e.g. nanoseconds per second). */
+    void summary(String name, String labels, Histogram histogram, double unit) {
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        for (double quantile : QUANTILES) {
+            String quantileLabel = label("quantile", Double.toString(quantile));
+            sample(name, labels.isEmpty() ? quantileLabel : labels + "," + quantileLabel,
+                    snapshot.valueAt(quantile) / unit);
+        }
+        sample(name + "_sum", labels, snapshot.sum() / unit);
+        sample(name + "_count", labels, snapshot.count());
+    }
+
+    static String label(String name, String value) {
+        String escaped = value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        return name + "=\"" + escaped + "\"";
+    }
+
+    @Override
+    public String toString() {
+        return out.toString();
+    }
+}
@@ -0,0 +1,107 @@
+package org.florian.duocanvas.metrics;
+
+import org.florian.duocanvas.Main;
+import org.florian.duocanvas.db.DrawJournal;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide metrics and the text served on /metrics.
+ * Every metric is registered once, when its owner is initialized, and recorded through the
+ * LongAdder or Histogram handed out then, so the hot paths never look anything up.
+ * Per-canvas metrics live in their CanvasSession and are collected from the resident canvases on scrape.
+ */
+public class Metrics {
+
+    public static final double NANOS_PER_SECOND = 1e9;
+
+    // metric is a LongAdder, a Histogram or a LongSupplier read on scrape.
+    private record Child(String labels, Object metric) {
+    }
+
+    private record Family(String name, String type, String help, double unit, List<Child> children) {
+    }
+
+    private static final Map<String, Family> FAMILIES = new LinkedHashMap<>();
+
+    public static final LongAdder DROPPED_UPDATES = counter("duocanvas_dropped_updates_total",
+            "Canvas updates dropped because the client fell behind.");
+    public static final LongAdder RESYNCS = counter("duocanvas_resyncs_total",
+            "Viewport snapshots sent to clients that fell behind.");
+    public static final LongAdder BACKED_UP_CANVASES = counter("duocanvas_backed_up_canvases_total",
+            "Canvases written by backups.");
+
+    public static final Histogram DATABASE_INSERT = databaseDuration("insert");
+    public static final Histogram DATABASE_LOAD = databaseDuration("load");
+    public static final Histogram DATABASE_BACKUP = databaseDuration("backup");
+    public static final Histogram DATABASE_JOURNAL_APPEND = databaseDuration("journal_append");
+    public static final Histogram DATABASE_JOURNAL_REPLAY = databaseDuration("journal_replay");
+
+    static {
+        // Lambdas, so Main is only initialized once somebody scrapes.
+        gauge("duocanvas_connections", "Open canvas sockets.", "", () -> Main.USERS.size());
+        gauge("duocanvas_resident_canvases", "Canvases loaded in memory.", "", () -> Main.ACTIVE_CANVAS_SESSIONS.size());
+        gauge("duocanvas_journal_backlog", "Draws not committed to the journal yet.", "", DrawJournal::backlog);
+    }
+
+    /* Time a socket thread spends dispatching one request. */
+    public static Histogram requestDuration(String requestType) {
+        return register("duocanvas_request_duration_seconds", "summary",
+                "Time spent dispatching a socket request on its socket thread.",
+                NANOS_PER_SECOND, ExpositionWriter.label("type", requestType), new Histogram());
+    }
+
+    /* Time from submitting a background task until it finished, including the wait for its limit. */
+    public static Histogram taskDuration(String requestType) {
+        return register("duocanvas_task_duration_seconds", "summary",
+                "Time from submitting a background task until it finished, including the wait for its limit.",
+                NANOS_PER_SECOND, ExpositionWriter.label("type", requestType), new Histogram());
+    }
+
+    public static void tasksWaiting(String requestType, LongSupplier waiting) {
+        register("duocanvas_tasks_waiting", "gauge", "Background tasks waiting for their limit.",
+                1, ExpositionWriter.label("type", requestType), waiting);
+    }
+
+    public static synchronized String render() {
+        ExpositionWriter out = new ExpositionWriter();
+        for (Family family : FAMILIES.values()) {
+            out.family(family.name(), family.type(), family.help());
+            for (Child child : family.children()) {
+                switch (child.metric()) {
+                    case LongAdder counter -> out.sample(family.name(), child.labels(), counter.sum());
+                    case Histogram histogram -> out.summary(family.name(), child.labels(), histogram, family.unit());
+                    case LongSupplier gauge -> out.sample(family.name(), child.labels(), gauge.getAsLong());
+                    default -> throw new IllegalStateException(family.name());
+                }
+            }
+        }
+        CanvasMetrics.write(out, Main.ACTIVE_CANVAS_SESSIONS.values());
+        return out.toString();
+    }
+
+    private static Histogram databaseDuration(String operation) {
+        return register("duocanvas_database_duration_seconds", "summary", "Latency of database operations.",
+                NANOS_PER_SECOND, ExpositionWriter.label("operation", operation), new Histogram());
+    }
+
+    private static LongAdder counter(String name, String help) {
+        return register(name, "counter", help, 1, "", new LongAdder());
+    }
+
+    private static void gauge(String name, String help, String labels, LongSupplier value) {
+        register(name, "gauge", help, 1, labels, value);
+    }
+
+    private static synchronized <T> T register(String name, String type, String help, double unit,
+                                               String labels, T metric) {
+        FAMILIES.computeIfAbsent(name, key -> new Family(key, type, help, unit, new CopyOnWriteArrayList<>()))
+                .children().add(new Child(labels, metric));
+        return metric;
+    }
+}
@@ -0,0 +1,109 @@
+package org.florian.duocanvas.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Binary frame format for clients that asked for protocol "binary" in their canvas request.
+ * All values are big-endian, colors are sent as 3 RGB bytes.
+ *
+ * <pre>
+ * DRAW           [0x01][x:int][y:int][rgb:3]          client -> server
+ * DRAW_RESPONSE  [0x02][status:1][retryAfterMillis:int] server -> client, status 0 = rejected, 1 = ok, 2 = rate limited
+ * UPDATE         [0x03][x:int][y:int][rgb:3]          server -> client
+ * UPDATES        [0x04][count:int]{[x:int][y:int][rgb:3]}
+ * SNAPSHOT_START [0x05][chunks:int]
+ * SNAPSHOT_CHUNK [0x06][x:int][y:int][width:int][height:int][zlib deflated RGBA rows]
+ * REGION         [0x07][x:int][y:int][width:int][height:int][zlib deflated RGBA rows], alpha 0 = unchanged
+ * </pre>
+ */
+public class BinaryProtocol {
+
+    public static final String PROTOCOL_NAME = "binary";
+
+    public static final byte OP_DRAW = 0x01;
+    public static final byte OP_DRAW_RESPONSE = 0x02;
+    public static final byte OP_UPDATE = 0x03;
+    public static final byte OP_UPDATES = 0x04;
+    public static final byte OP_SNAPSHOT_START = 0x05;
+    public static final byte OP_SNAPSHOT_CHUNK = 0x06;
+    public static final byte OP_REGION = 0x07;
+
+    public static final byte STATUS_REJECTED = 0;
+    public static final byte STATUS_OK = 1;
+    public static final byte STATUS_RATE_LIMITED = 2;
+
+    public static final int DRAW_LENGTH = 12;
+    private static final int PIXEL_LENGTH = 11;
+
+    public static ByteBuffer encodeDrawResponse(boolean success) {
+        return encodeDrawResponse(success ? STATUS_OK : STATUS_REJECTED, 0);
+    }
+
+    public static ByteBuffer encodeDrawRateLimited(long retryAfterMillis) {
+        return encodeDrawResponse(STATUS_RATE_LIMITED, (int) Math.min(Integer.MAX_VALUE, retryAfterMillis));
+    }
+
+    private static ByteBuffer encodeDrawResponse(byte status, int retryAfterMillis) {
+        ByteBuffer buffer = ByteBuffer.allocate(6);
+        buffer.put(OP_DRAW_RESPONSE).put(status).putInt(retryAfterMillis);
+        return buffer.flip();
+    }
+
+    public static ByteBuffer encodeUpdate(int x, int y, int argb) {
+        ByteBuffer buffer = ByteBuffer.allocate(1 + PIXEL_LENGTH);
+        buffer.put(OP_UPDATE);
+        putPixel(buffer, x, y, argb);
+        return buffer.flip();
+    }
+
+    public static ByteBuffer encodeUpdates(int[] xs, int[] ys, int[] colors) {
+        ByteBuffer buffer = ByteBuffer.allocate(5 + xs.length * PIXEL_LENGTH);
+        buffer.put(OP_UPDATES).putInt(xs.length);
+        for (int i = 0; i < xs.length; i++) {
+            putPixel(buffer, xs[i], ys[i], colors[i]);
+        }
+        return buffer.flip();
+    }
+
+    public static ByteBuffer encodeSnapshotStart(int chunks) {
+        ByteBuffer buffer = ByteBuffer.allocate(5);
+        buffer.put(OP_SNAPSHOT_START).putInt(chunks);
+        return buffer.flip();
+    }
+
+    public static ByteBuffer encodeSnapshotChunk(int x, int y, int width, int height, byte[] deflatedRgba) {
+        ByteBuffer buffer = ByteBuffer.allocate(17 + deflatedRgba.length);
+        buffer.put(OP_SNAPSHOT_CHUNK).putInt(x).putInt(y).putInt(width).putInt(height).put(deflatedRgba);
+        return buffer.flip();
+    }
+
+    /* Unlike a snapshot chunk, a region only overlays the client's canvas: transparent pixels keep their color. */
+    public static ByteBuffer encodeRegion(int x, int y, int width, int height, byte[] deflatedRgba) {
+        ByteBuffer buffer = ByteBuffer.allocate(17 + deflatedRgba.length);
+        buffer.put(OP_REGION).putInt(x).putInt(y).putInt(width).putInt(height).put(deflatedRgba);
+        return buffer.flip();
+    }
+
+    public static int readX(ByteBuffer frame) {
+        return frame.getInt(frame.position() + 1);
+    }
+
+    public static int readY(ByteBuffer frame) {
+        return frame.getInt(frame.position() + 5);
+    }
+
+    public static int readColor(ByteBuffer frame) {
+        int offset = frame.position() + 9;
+        return 0xFF000000
+                | (frame.get(offset) & 0xFF) << 16
+                | (frame.get(offset + 1) & 0xFF) << 8
+                | (frame.get(offset + 2) & 0xFF);
+    }
+
+    private static void putPixel(ByteBuffer buffer, int x, int y, int argb) {
+        buffer.putInt(x).putInt(y)
+                .put((byte) (argb >> 16))
+                .put((byte) (argb >> 8))
+                .put((byte) argb);
+    }
+}
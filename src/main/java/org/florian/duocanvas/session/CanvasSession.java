@@ -1,5 +1,6 @@
 package org.florian.duocanvas.session;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -7,50 +8,137 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import io.javalin.websocket.WsContext;
 
 import io.javalin.websocket.WsMessageContext;
-import org.apache.commons.io.FileUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.florian.duocanvas.Main;
-import org.florian.duocanvas.canvas.CanvasPixel;
+import org.florian.duocanvas.WorkerPools;
+import org.florian.duocanvas.canvas.Palette;
+import org.florian.duocanvas.canvas.PixelStore;
+import org.florian.duocanvas.canvas.Region;
+import org.florian.duocanvas.canvas.TileRange;
+import org.florian.duocanvas.cluster.CanvasCluster;
+import org.florian.duocanvas.cluster.Replication;
+import org.florian.duocanvas.db.DrawJournal;
+import org.florian.duocanvas.db.HistoryDatabase;
 import org.florian.duocanvas.json.requests.CanvasRequest;
 import org.florian.duocanvas.json.requests.DrawRequest;
+import org.florian.duocanvas.json.requests.FillRequest;
+import org.florian.duocanvas.json.requests.FloodFillRequest;
 import org.florian.duocanvas.json.requests.ImageRequest;
+import org.florian.duocanvas.json.requests.LineRequest;
+import org.florian.duocanvas.json.requests.RegionRequest;
+import org.florian.duocanvas.json.requests.StampRequest;
+import org.florian.duocanvas.json.requests.Viewport;
+import org.florian.duocanvas.json.requests.ViewportRequest;
+import org.florian.duocanvas.json.responses.CanvasInfo;
 import org.florian.duocanvas.json.responses.CanvasResponse;
 import org.florian.duocanvas.json.responses.DrawResponse;
 import org.florian.duocanvas.json.responses.DrawUpdate;
+import org.florian.duocanvas.json.responses.DrawUpdateBatch;
 import org.florian.duocanvas.json.responses.ImageResponse;
+import org.florian.duocanvas.json.responses.PixelUpdate;
+import org.florian.duocanvas.metrics.CanvasMetrics;
+import org.florian.duocanvas.protocol.BinaryProtocol;
 
-import javax.imageio.ImageIO;
-import javax.imageio.stream.FileImageInputStream;
-import javax.imageio.stream.ImageInputStream;
-import javax.imageio.stream.ImageOutputStream;
-import javax.swing.*;
-import java.awt.*;
-import java.awt.image.BufferedImage;
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.Serializable;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.sql.SQLException;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
-import java.util.HashSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.IntStream;
 
-public class CanvasSession implements Serializable {
+public class CanvasSession {
     public String canvasCode;
-    private final Set<String> participants = new HashSet<>();
-    public CanvasPixel[][] canvasData = new CanvasPixel[1000][1000];
+    private final Set<String> participants = ConcurrentHashMap.newKeySet();
+    private final Map<String, Subscriber> subscribers = new ConcurrentHashMap<>();
+    private final PixelStore canvasData;
+    private final AtomicBoolean dirty = new AtomicBoolean(false);
+    private volatile long lastAccess = System.nanoTime();
+    private final UpdateBatcher updateBatcher;
+    private final SnapshotCache snapshotCache;
+    private final ImageCache imageCache;
+    private final DrawLimiter drawLimiter = new DrawLimiter(DrawLimiter.DEFAULT_RATE, DrawLimiter.DEFAULT_BURST);
+    private final CanvasMetrics metrics = new CanvasMetrics();
+    private final Replication replication = new Replication();
 
     private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
     private static final Logger LOGGER = LogManager.getLogger();
+    // Upper bound for one subscription, a viewport asking for more is cut down from its far edges.
+    static final int MAX_VIEWPORT_TILES = Integer.getInteger("duocanvas.maxViewportTiles", 1024);
+    // JSON snapshots spell out every painted pixel, so JSON subscriptions get a much smaller bound.
+    static final int MAX_JSON_VIEWPORT_TILES = Integer.getInteger("duocanvas.maxJsonViewportTiles", 64);
 
-    public CanvasSession(String sessionCode, String creatorUUID) {
+    /* A client only receives updates and snapshots for the tiles in its viewport. */
+    private record Subscriber(OutboundQueue outbound, TileRange viewport) {
+    }
+
+    public CanvasSession(String sessionCode, String creatorUUID, int width, int height, Palette palette) {
         this.canvasCode = sessionCode;
+        this.canvasData = new PixelStore(width, height, palette);
+        this.updateBatcher = new UpdateBatcher(canvasData.getWidth());
+        this.snapshotCache = new SnapshotCache(canvasData);
+        this.imageCache = new ImageCache(canvasData);
         this.participants.add(creatorUUID);
     }
 
+    public CanvasSession(String sessionCode, PixelStore canvasData) {
+        this.canvasCode = sessionCode;
+        this.canvasData = canvasData;
+        this.updateBatcher = new UpdateBatcher(canvasData.getWidth());
+        this.snapshotCache = new SnapshotCache(canvasData);
+        this.imageCache = new ImageCache(canvasData);
+    }
+
     public void addPixelToCanvas(int x, int y, String color, String participantUUID) {
-        canvasData[x][y] = new CanvasPixel(participantUUID, x, y, color);
+        addPixelToCanvas(x, y, PixelStore.parseColor(color), participantUUID);
+    }
+
+    public void addPixelToCanvas(int x, int y, int color, String participantUUID) {
+        canvasData.setPixel(x, y, color, participantUUID);
+        snapshotCache.markPixel(x, y);
+        // Plain read first, so concurrent draws don't keep writing the same shared flag.
+        if (!dirty.get()) {
+            dirty.set(true);
+        }
+    }
+
+    public boolean isDirty() {
+        return dirty.get();
+    }
+
+    public void markDirty() {
+        dirty.set(true);
+    }
+
+    /* Clears the dirty flag and reports whether it was set. */
+    public boolean clearDirty() {
+        return dirty.getAndSet(false);
+    }
+
+    public long getLastAccess() {
+        return lastAccess;
+    }
+
+    public void touch() {
+        long now = System.nanoTime();
+        // Only publish about once a second, busy canvases would otherwise write this on every draw.
+        if (now - lastAccess > 1_000_000_000L) {
+            lastAccess = now;
+        }
+    }
+
+    public PixelStore getCanvasData() {
+        return this.canvasData;
     }
 
     public Set<String> getParticipants() {
@@ -63,13 +151,159 @@ public class CanvasSession implements Serializable {
 
     public void removeParticipant(String participantUUID) {
         this.participants.remove(participantUUID);
+        this.subscribers.remove(participantUUID);
+        this.drawLimiter.remove(participantUUID);
+        if (replication.isReplica()) {
+            CanvasCluster.participantLeft(this, participantUUID);
+        }
+    }
+
+    public OutboundQueue addSubscriber(WsContext ctx, boolean binary, TileRange viewport) {
+        String sessionId = ctx.sessionId();
+        OutboundQueue outbound = new OutboundQueue(ctx, binary, () -> resync(sessionId));
+        this.subscribers.put(sessionId, new Subscriber(outbound, viewport));
+        return outbound;
+    }
+
+    public DrawLimiter getDrawLimiter() {
+        return this.drawLimiter;
+    }
+
+    public int getSubscriberCount() {
+        return this.subscribers.size();
+    }
+
+    public CanvasMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    public Replication getReplication() {
+        return this.replication;
+    }
+
+    public int getLaggingSubscriberCount() {
+        int lagging = 0;
+        for (Subscriber subscriber : subscribers.values()) {
+            if (subscriber.outbound().isLagging()) {
+                lagging++;
+            }
+        }
+        return lagging;
+    }
+
+    public long getPendingBytes() {
+        long pendingBytes = 0;
+        for (Subscriber subscriber : subscribers.values()) {
+            pendingBytes += subscriber.outbound().getPendingBytes();
+        }
+        return pendingBytes;
+    }
+
+    private void publishUpdate(int x, int y, int color) throws JsonProcessingException {
+        if (Main.UPDATE_TICK_MILLIS <= 0) {
+            long start = System.nanoTime();
+            int messages = 0;
+            String jsonMessage = OBJECT_MAPPER.writeValueAsString(
+                    new DrawUpdate("canvasUpdate", x, y, PixelStore.formatColor(color)));
+            ByteBuffer binaryMessage = BinaryProtocol.encodeUpdate(x, y, color);
+            for (Subscriber subscriber : subscribers.values()) {
+                if (subscriber.viewport().contains(x / PixelStore.TILE_SIZE, y / PixelStore.TILE_SIZE)) {
+                    subscriber.outbound().sendUpdate(jsonMessage, binaryMessage);
+                    messages++;
+                }
+            }
+            metrics.recordBroadcast(start, messages, 1);
+            if (CanvasCluster.isEnabled()) {
+                CanvasCluster.publishUpdates(this, new UpdateBatcher.Batch(new int[]{x}, new int[]{y}, new int[]{color}));
+            }
+            return;
+        }
+        if (updateBatcher.add(x, y, color)) {
+            WorkerPools.schedule(Duration.ofMillis(Main.UPDATE_TICK_MILLIS), this::flushUpdates);
+        }
+    }
+
+    private void flushUpdates() {
+        UpdateBatcher.Batch batch = updateBatcher.drain();
+        if (batch.size() == 0) {
+            return;
+        }
+        fanOut(batch);
+        if (CanvasCluster.isEnabled()) {
+            CanvasCluster.publishUpdates(this, batch);
+        }
+    }
+
+    /* Applies an update batch of the owner to this replica and sends it on to the local clients. */
+    public void applyReplicatedUpdates(UpdateBatcher.Batch batch, String[] owners) {
+        for (int i = 0; i < batch.size(); i++) {
+            addPixelToCanvas(batch.xs()[i], batch.ys()[i], batch.colors()[i], owners[i]);
+        }
+        fanOut(batch);
+    }
+
+    /* Overwrites every pixel, e.g. with a fresh snapshot of the owner, and resends every client its viewport. */
+    public void replaceCanvas(PixelStore source) {
+        canvasData.copyFrom(source);
+        snapshotCache.markAll();
+        subscribers.keySet().forEach(this::resync);
+    }
+
+    private void fanOut(UpdateBatcher.Batch batch) {
+        long start = System.nanoTime();
+        int messages = 0;
+        try {
+            // Most clients share a viewport (often the whole canvas), each distinct one is filtered and encoded once.
+            Map<TileRange, UpdateBatcher.Batch> visibleBatches = new HashMap<>();
+            Map<TileRange, String> jsonMessages = new HashMap<>();
+            Map<TileRange, ByteBuffer> binaryMessages = new HashMap<>();
+
+            for (Subscriber subscriber : subscribers.values()) {
+                TileRange viewport = subscriber.viewport();
+                UpdateBatcher.Batch visible = visibleBatches.computeIfAbsent(viewport, batch::within);
+                if (visible.size() == 0) {
+                    continue;
+                }
+                if (subscriber.outbound().isBinary()) {
+                    ByteBuffer binaryMessage = binaryMessages.get(viewport);
+                    if (binaryMessage == null) {
+                        binaryMessage = BinaryProtocol.encodeUpdates(visible.xs(), visible.ys(), visible.colors());
+                        binaryMessages.put(viewport, binaryMessage);
+                    }
+                    subscriber.outbound().sendUpdate(null, binaryMessage);
+                } else {
+                    String jsonMessage = jsonMessages.get(viewport);
+                    if (jsonMessage == null) {
+                        jsonMessage = encodeUpdates(visible);
+                        jsonMessages.put(viewport, jsonMessage);
+                    }
+                    subscriber.outbound().sendUpdate(jsonMessage, null);
+                }
+                messages++;
+            }
+            metrics.recordBroadcast(start, messages, batch.size());
+        } catch (Exception e) {
+            LOGGER.debug(e);
+        }
+    }
+
+    private static String encodeUpdates(UpdateBatcher.Batch batch) throws JsonProcessingException {
+        List<PixelUpdate> updates = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            updates.add(new PixelUpdate(batch.xs()[i], batch.ys()[i], PixelStore.formatColor(batch.colors()[i])));
+        }
+        return OBJECT_MAPPER.writeValueAsString(new DrawUpdateBatch("canvasUpdates", updates));
     }
 
     public void handlePacket(WsMessageContext ctx, Object decodedJson) throws IOException {
         if (decodedJson instanceof CanvasRequest) {
-            handleCanvasRequest(ctx);
+            handleCanvasRequest(ctx, (CanvasRequest) decodedJson);
         } else if (decodedJson instanceof DrawRequest) {
             handleDrawRequest(ctx, (DrawRequest) decodedJson);
+        } else if (decodedJson instanceof RegionRequest) {
+            handleRegionRequest(ctx, (RegionRequest) decodedJson);
+        } else if (decodedJson instanceof ViewportRequest) {
+            handleViewportRequest(ctx, (ViewportRequest) decodedJson);
         } else if (decodedJson instanceof ImageRequest) {
             handleImageRequest(ctx);
         } else {
@@ -77,23 +311,19 @@ public class CanvasSession implements Serializable {
         }
     }
 
-    private void handleCanvasRequest(WsMessageContext ctx) throws JsonProcessingException {
+    private void handleCanvasRequest(WsMessageContext ctx, CanvasRequest decodedJson) throws JsonProcessingException {
         try {
+            boolean binary = BinaryProtocol.PROTOCOL_NAME.equals(decodedJson.protocol());
+            TileRange viewport = toTileRange(decodedJson.viewport(), binary);
             this.addParticipant(ctx.sessionId());
-            ArrayList<CanvasPixel> canvasPixels = new ArrayList<>();
+            OutboundQueue outbound = this.addSubscriber(ctx, binary, viewport);
 
-            for (CanvasPixel[] i : this.canvasData) {
-                for (CanvasPixel j : i) {
-                    if (j != null) {
-                        canvasPixels.add(j);
-                    }
-                }
-            }
-            String canvasContent = OBJECT_MAPPER.writeValueAsString(canvasPixels);
-            ctx.send(OBJECT_MAPPER.writeValueAsString(
-                    new CanvasResponse("canvasResponse", canvasContent))
+            Palette palette = canvasData.getPalette();
+            outbound.send(OBJECT_MAPPER.writeValueAsString(new CanvasInfo(
+                    "canvasInfo", canvasData.getWidth(), canvasData.getHeight(), PixelStore.TILE_SIZE,
+                    palette == null ? null : palette.format())), null
             );
-
+            sendTiles(outbound, viewport, null);
             LOGGER.debug("Loaded Canvas for: {}", ctx.sessionId());
 
         } catch (IOException e) {
@@ -102,66 +332,500 @@ public class CanvasSession implements Serializable {
         }
     }
 
+    /* Moves the subscription and sends the tiles that just became visible. */
+    private void handleViewportRequest(WsMessageContext ctx, ViewportRequest decodedJson) throws IOException {
+        Subscriber subscriber = subscribers.get(ctx.sessionId());
+        if (subscriber == null) {
+            return;
+        }
+        TileRange viewport = toTileRange(decodedJson.viewport(), subscriber.outbound().isBinary());
+        subscribers.put(ctx.sessionId(), new Subscriber(subscriber.outbound(), viewport));
+        sendTiles(subscriber.outbound(), viewport, subscriber.viewport());
+    }
+
+    /* Replaces the updates a lagging client missed with its whole viewport. */
+    private void resync(String sessionId) {
+        Subscriber subscriber = subscribers.get(sessionId);
+        if (subscriber == null) {
+            return;
+        }
+        try {
+            sendTiles(subscriber.outbound(), subscriber.viewport(), null);
+            LOGGER.debug("Resynced: {}", sessionId);
+        } catch (Exception e) {
+            LOGGER.debug(e);
+        }
+    }
+
+    /* Without a viewport the client subscribes to the whole canvas (up to MAX_VIEWPORT_TILES). */
+    private TileRange toTileRange(Viewport viewport, boolean binary) {
+        TileRange range = viewport == null
+                ? canvasData.getAllTiles()
+                : canvasData.tilesIn(viewport.x(), viewport.y(), viewport.width(), viewport.height());
+        return range.limit(binary ? MAX_VIEWPORT_TILES : MAX_JSON_VIEWPORT_TILES);
+    }
+
+    /* Sends the painted tiles in range that are not in excluded (may be null). */
+    private void sendTiles(OutboundQueue outbound, TileRange range, TileRange excluded) throws IOException {
+        // Updates that race the encoding are held back until the tiles are sent.
+        outbound.beginSnapshot();
+        try {
+            if (outbound.isBinary()) {
+                List<ByteBuffer> chunks = snapshotCache.getChunks(range, excluded);
+                long bytes = 0;
+                outbound.send(null, BinaryProtocol.encodeSnapshotStart(chunks.size()));
+                for (ByteBuffer chunk : chunks) {
+                    outbound.send(null, chunk);
+                    bytes += chunk.remaining();
+                }
+                metrics.recordSnapshot(bytes);
+                LOGGER.debug("Streamed {} canvas chunks to: {}", chunks.size(), outbound.getContext().sessionId());
+            } else {
+                String pixels = encodeTilePixels(range, excluded);
+                outbound.send(pixels, null);
+                metrics.recordSnapshot(pixels.length());
+            }
+        } finally {
+            outbound.endSnapshot();
+        }
+    }
+
+    /* JSON clients receive the tiles as one list of CanvasPixel objects, written straight from the store. */
+    private String encodeTilePixels(TileRange range, TileRange excluded) throws IOException {
+        StringWriter canvasContent = new StringWriter();
+        try (JsonGenerator json = OBJECT_MAPPER.getFactory().createGenerator(canvasContent)) {
+            json.writeStartArray();
+            for (int tileY = range.minTileY(); tileY <= range.maxTileY(); tileY++) {
+                for (int tileX = range.minTileX(); tileX <= range.maxTileX(); tileX++) {
+                    if ((excluded != null && excluded.contains(tileX, tileY))
+                            || !canvasData.isTileAllocated(tileY * canvasData.getTilesX() + tileX)) {
+                        continue;
+                    }
+                    int startX = tileX * PixelStore.TILE_SIZE;
+                    int startY = tileY * PixelStore.TILE_SIZE;
+                    int endX = Math.min(canvasData.getWidth(), startX + PixelStore.TILE_SIZE);
+                    int endY = Math.min(canvasData.getHeight(), startY + PixelStore.TILE_SIZE);
+                    for (int y = startY; y < endY; y++) {
+                        for (int x = startX; x < endX; x++) {
+                            if (canvasData.isPainted(x, y)) {
+                                writeCanvasPixel(json, x, y);
+                            }
+                        }
+                    }
+                }
+            }
+            json.writeEndArray();
+        }
+        return OBJECT_MAPPER.writeValueAsString(new CanvasResponse("canvasResponse", canvasContent.toString()));
+    }
+
+    /* The fields and order Jackson gives a CanvasPixel. */
+    private void writeCanvasPixel(JsonGenerator json, int x, int y) throws IOException {
+        json.writeStartObject();
+        json.writeObjectFieldStart("position");
+        json.writeNumberField("x", x);
+        json.writeNumberField("y", y);
+        json.writeEndObject();
+        json.writeStringField("owner", canvasData.getOwner(x, y));
+        json.writeStringField("color", PixelStore.formatColor(canvasData.getColor(x, y)));
+        json.writeEndObject();
+    }
+
     private void handleDrawRequest(WsMessageContext ctx, DrawRequest decodedJson) throws JsonProcessingException {
+        long start = System.nanoTime();
         int x = decodedJson.x();
         int y = decodedJson.y();
         String color = decodedJson.color();
 
         if (color == null) {
+            metrics.recordRejectedDraw();
             cancelDrawResponse(ctx);
             return;
         }
         try {
-            this.addPixelToCanvas(x, y, color, ctx.sessionId());
+            int argb = PixelStore.parseColor(color);
+            if (replication.isReplica()) {
+                CanvasCluster.forwardDraw(this, ctx, false, x, y, argb);
+                return;
+            }
+            long retryAfter = draw(x, y, argb, ctx.sessionId(), start);
+            if (retryAfter > 0) {
+                sendRejection(ctx, OBJECT_MAPPER.writeValueAsString(
+                        new DrawResponse("drawResponse", false, DrawResponse.RATE_LIMITED, retryAfter)), null
+                );
+                return;
+            }
             ctx.send(OBJECT_MAPPER.writeValueAsString(
                     new DrawResponse("drawResponse", true))
             );
-            for (WsContext user : Main.USERS) {
-                user.send(OBJECT_MAPPER.writeValueAsString(new DrawUpdate("canvasUpdate", x, y, color)));
-            }
+            publishUpdate(x, y, argb);
             LOGGER.debug("A new pixel has been added to the canvas.");
         } catch (Exception e) {
+            metrics.recordRejectedDraw();
             cancelDrawResponse(ctx);
             LOGGER.debug(e);
         }
     }
 
-    private void handleImageRequest(WsMessageContext ctx) throws IOException {
-        try{
-            String base64Image = generateCanvasImage();
-            ctx.send(OBJECT_MAPPER.writeValueAsString(new ImageResponse("imageResponse", base64Image)));
-        }catch (Exception e){
+    public void handleBinaryDraw(WsContext ctx, ByteBuffer frame) {
+        long start = System.nanoTime();
+        if (frame.remaining() < BinaryProtocol.DRAW_LENGTH) {
+            metrics.recordRejectedDraw();
+            ctx.send(BinaryProtocol.encodeDrawResponse(false));
+            return;
+        }
+        int x = BinaryProtocol.readX(frame);
+        int y = BinaryProtocol.readY(frame);
+        int color = BinaryProtocol.readColor(frame);
+        if (replication.isReplica()) {
+            CanvasCluster.forwardDraw(this, ctx, true, x, y, color);
+            return;
+        }
+        try {
+            long retryAfter = draw(x, y, color, ctx.sessionId(), start);
+            if (retryAfter > 0) {
+                sendRejection(ctx, null, BinaryProtocol.encodeDrawRateLimited(retryAfter));
+                return;
+            }
+            ctx.send(BinaryProtocol.encodeDrawResponse(true));
+            publishUpdate(x, y, color);
+        } catch (Exception e) {
+            metrics.recordRejectedDraw();
+            ctx.send(BinaryProtocol.encodeDrawResponse(false));
             LOGGER.debug(e);
         }
     }
 
+    /* Applies and journals a draw, returns 0 or the milliseconds until the participant may draw again. */
+    private long draw(int x, int y, int argb, String participant, long start) {
+        Palette palette = canvasData.getPalette();
+        if (palette != null && !palette.contains(argb)) {
+            throw new IllegalArgumentException("Color is not part of the palette: " + PixelStore.formatColor(argb));
+        }
+        long retryAfter = drawLimiter.tryAcquire(participant);
+        if (retryAfter > 0) {
+            metrics.recordRateLimitedDraw();
+            return retryAfter;
+        }
+        this.addPixelToCanvas(x, y, argb, participant);
+        DrawJournal.append(canvasCode, x, y, argb, participant);
+        metrics.recordDraw(start);
+        return 0;
+    }
 
-    private String generateCanvasImage() throws IOException {
-        BufferedImage image = new BufferedImage(1000, 1000, BufferedImage.TYPE_INT_RGB);
-        Graphics2D g = image.createGraphics();
+    /* A draw a replica forwarded to this owner: 0 if applied, the retry-after if rate limited, -1 if rejected. */
+    public long drawForwarded(int x, int y, int argb, String participant) {
+        try {
+            long retryAfter = draw(x, y, argb, participant, System.nanoTime());
+            if (retryAfter == 0) {
+                publishUpdate(x, y, argb);
+            }
+            return retryAfter;
+        } catch (Exception e) {
+            metrics.recordRejectedDraw();
+            LOGGER.debug(e);
+            return -1;
+        }
+    }
 
-        for (int j = 0; j < 1000; j++) {
-            for (int i = 0; i < 1000; i++) {
-                CanvasPixel currentPixel = canvasData[i][j];
-                Color color = Color.WHITE;
+    /* Answers the client of a forwarded draw with the owner's result. */
+    public void completeForwardedDraw(WsContext ctx, boolean binary, long result) {
+        try {
+            if (result > 0) {
+                sendRejection(ctx,
+                        binary ? null : OBJECT_MAPPER.writeValueAsString(
+                                new DrawResponse("drawResponse", false, DrawResponse.RATE_LIMITED, result)),
+                        binary ? BinaryProtocol.encodeDrawRateLimited(result) : null
+                );
+            } else if (binary) {
+                ctx.send(BinaryProtocol.encodeDrawResponse(result == 0));
+            } else {
+                ctx.send(OBJECT_MAPPER.writeValueAsString(new DrawResponse("drawResponse", result == 0)));
+            }
+        } catch (Exception e) {
+            LOGGER.debug(e);
+        }
+    }
 
-                if (currentPixel != null) {
-                    String pixelColor = currentPixel.getColor();
-                    color = new Color(Integer.parseInt(pixelColor.replace("#", ""), 16));
+    private void handleRegionRequest(WsMessageContext ctx, RegionRequest decodedJson) {
+        if (replication.isReplica()) {
+            CanvasCluster.forwardRegion(this, ctx, ctx.message());
+            return;
+        }
+        sendRegionResponse(ctx, drawRegion(decodedJson, ctx.sessionId()));
+    }
+
+    /*
+     * Applies a bulk draw like that many single draws, but in one pass over the canvas and as one broadcast
+     * per region. It costs one token per painted pixel from the same bucket as single draws.
+     * Returns 0 if applied, the retry-after if rate limited, -1 if rejected.
+     */
+    private long drawRegion(RegionRequest request, String participant) {
+        long start = System.nanoTime();
+        try {
+            List<Region> regions = toRegions(request);
+            List<UpdateBatcher.Batch> batches = new ArrayList<>(regions.size());
+            int paintedCount = 0;
+            Palette palette = canvasData.getPalette();
+            for (Region region : regions) {
+                UpdateBatcher.Batch painted = toBatch(region);
+                for (int i = 0; palette != null && i < painted.size(); i++) {
+                    if (!palette.contains(painted.colors()[i])) {
+                        throw new IllegalArgumentException(
+                                "Color is not part of the palette: " + PixelStore.formatColor(painted.colors()[i]));
+                    }
                 }
-                g.setColor(color);
-                g.drawRect(i, j, 2, 2);
+                batches.add(painted);
+                paintedCount += painted.size();
+            }
+            if (paintedCount == 0) {
+                return 0;
+            }
+            long retryAfter = drawLimiter.tryAcquire(participant, paintedCount);
+            if (retryAfter > 0) {
+                metrics.recordRateLimitedDraw();
+                return retryAfter;
+            }
+            for (int i = 0; i < regions.size(); i++) {
+                applyRegion(regions.get(i), batches.get(i), participant);
             }
+            metrics.recordDraw(start);
+            return 0;
+        } catch (Exception e) {
+            metrics.recordRejectedDraw();
+            LOGGER.debug(e);
+            return -1;
         }
+    }
 
-        File imageFile= new File(canvasCode + ".png");
-        ImageIO.write(image, "png", imageFile);
-        byte[] fileContent = FileUtils.readFileToByteArray(imageFile);
+    private void applyRegion(Region region, UpdateBatcher.Batch painted, String owner) throws JsonProcessingException {
+        canvasData.paint(region, owner);
+        TileRange tiles = canvasData.tilesIn(region.x(), region.y(), region.width(), region.height());
+        snapshotCache.markRegion(tiles);
+        markDirty();
+        for (int i = 0; i < painted.size(); i++) {
+            DrawJournal.append(canvasCode, painted.xs()[i], painted.ys()[i], painted.colors()[i], owner);
+        }
+        publishRegion(region, tiles, painted);
+    }
+
+    /* Every pixel the participant currently holds, answered from the owner index. */
+    public List<PixelUpdate> getPixelsOf(String participant) {
+        List<PixelUpdate> pixels = new ArrayList<>();
+        canvasData.forEachOwnedBy(participant,
+                (x, y, argb) -> pixels.add(new PixelUpdate(x, y, PixelStore.formatColor(argb))));
+        return pixels;
+    }
 
-        boolean isDeleted = imageFile.getAbsoluteFile().delete();
-        LOGGER.debug("Successfully cleaned up?: {}", isDeleted);
+    /*
+     * Undoes the participant's draws: every pixel they hold goes back to the last color someone else drew there,
+     * with that owner, or to argb without owner if nobody did. Pixels whose last other draw has no owner are kept,
+     * it may have been the participant's. A pixel that was drawn over meanwhile keeps the newer draw.
+     * Broadcast in regions of at most Region.MAX_PIXELS, returns the number of pixels reverted.
+     */
+    public int revertParticipant(String participant, int argb) throws JsonProcessingException, SQLException {
+        int width = canvasData.getWidth();
+        IntStream.Builder ownedBuilder = IntStream.builder();
+        canvasData.forEachOwnedBy(participant, (x, y, color) -> ownedBuilder.add(y * width + x));
+        // Row by row, so the regions below are bands of the canvas.
+        int[] owned = ownedBuilder.build().sorted().toArray();
+        if (owned.length == 0) {
+            return 0;
+        }
+        int[] xs = new int[owned.length];
+        int[] ys = new int[owned.length];
+        for (int i = 0; i < owned.length; i++) {
+            xs[i] = owned[i] % width;
+            ys[i] = owned[i] / width;
+        }
+        int[] previousColors = new int[owned.length];
+        String[] previousOwners = new String[owned.length];
+        Arrays.fill(previousColors, argb);
+        // Draws still in the journal queue belong to the history as well.
+        DrawJournal.flush();
+        HistoryDatabase.forEachPreviousDraw(canvasCode, xs, ys, participant, (i, color, owner) -> {
+            previousColors[i] = owner == null ? PixelStore.EMPTY : color;
+            previousOwners[i] = owner;
+        });
+
+        int reverted = 0;
+        int chunkStart = 0;
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+        for (int i = 0; i < owned.length; i++) {
+            if (previousColors[i] == PixelStore.EMPTY
+                    || !canvasData.replaceIfOwnedBy(xs[i], ys[i], participant, previousColors[i], previousOwners[i])) {
+                continue;
+            }
+            DrawJournal.append(canvasCode, xs[i], ys[i], previousColors[i], previousOwners[i]);
+            long area = (long) (Math.max(maxX, xs[i]) - Math.min(minX, xs[i]) + 1) * (ys[i] - Math.min(minY, ys[i]) + 1);
+            if (reverted > chunkStart && area > Region.MAX_PIXELS) {
+                publishReverted(xs, ys, previousColors, chunkStart, reverted, minX, minY, maxX, maxY);
+                chunkStart = reverted;
+                minX = Integer.MAX_VALUE;
+                minY = Integer.MAX_VALUE;
+                maxX = Integer.MIN_VALUE;
+                maxY = Integer.MIN_VALUE;
+            }
+            // Reverted pixels move to the front, the arrays double as the chunk's batch.
+            xs[reverted] = xs[i];
+            ys[reverted] = ys[i];
+            previousColors[reverted] = previousColors[i];
+            reverted++;
+            minX = Math.min(minX, xs[i]);
+            minY = Math.min(minY, ys[i]);
+            maxX = Math.max(maxX, xs[i]);
+            maxY = Math.max(maxY, ys[i]);
+        }
+        if (reverted > chunkStart) {
+            publishReverted(xs, ys, previousColors, chunkStart, reverted, minX, minY, maxX, maxY);
+        }
+        LOGGER.debug("Reverted {} pixels of {} on {}.", reverted, participant, canvasCode);
+        return reverted;
+    }
+
+    private void publishReverted(int[] xs, int[] ys, int[] colors, int from, int to, int minX, int minY, int maxX,
+                                 int maxY) throws JsonProcessingException {
+        int regionWidth = maxX - minX + 1;
+        int[] regionColors = new int[regionWidth * (maxY - minY + 1)];
+        for (int i = from; i < to; i++) {
+            regionColors[(ys[i] - minY) * regionWidth + xs[i] - minX] = colors[i];
+        }
+        Region region = new Region(minX, minY, regionWidth, maxY - minY + 1, regionColors);
+        TileRange tiles = canvasData.tilesIn(region.x(), region.y(), region.width(), region.height());
+        snapshotCache.markRegion(tiles);
+        markDirty();
+        publishRegion(region, tiles, new UpdateBatcher.Batch(Arrays.copyOfRange(xs, from, to),
+                Arrays.copyOfRange(ys, from, to), Arrays.copyOfRange(colors, from, to)));
+    }
+
+    /* A bulk draw a replica forwarded to this owner, as the JSON its client sent. Same results as drawRegion. */
+    public long drawRegionForwarded(String requestJson, String participant) {
+        try {
+            return drawRegion(OBJECT_MAPPER.readValue(requestJson, RegionRequest.class), participant);
+        } catch (JsonProcessingException e) {
+            LOGGER.debug(e);
+            return -1;
+        }
+    }
+
+    private List<Region> toRegions(RegionRequest request) {
+        return switch (request) {
+            case FillRequest fill -> List.of(Region.rectangle(canvasData, fill.x(), fill.y(), fill.width(),
+                    fill.height(), PixelStore.parseColor(fill.color())));
+            case FloodFillRequest flood -> List.of(Region.floodFill(canvasData, flood.x(), flood.y(),
+                    PixelStore.parseColor(flood.color())));
+            case LineRequest line -> Region.line(canvasData, line.x0(), line.y0(), line.x1(), line.y1(),
+                    PixelStore.parseColor(line.color()));
+            case StampRequest stamp -> List.of(Region.stamp(canvasData, stamp.x(), stamp.y(), stamp.width(),
+                    stamp.height(), Base64.getDecoder().decode(stamp.image())));
+        };
+    }
+
+    private static UpdateBatcher.Batch toBatch(Region region) {
+        int size = region.paintedCount();
+        int[] xs = new int[size];
+        int[] ys = new int[size];
+        int[] colors = new int[size];
+        int i = 0;
+        for (int y = region.y(); y < region.y() + region.height(); y++) {
+            for (int x = region.x(); x < region.x() + region.width(); x++) {
+                int color = region.colorAt(x, y);
+                if (color != PixelStore.EMPTY) {
+                    xs[i] = x;
+                    ys[i] = y;
+                    colors[i] = color;
+                    i++;
+                }
+            }
+        }
+        return new UpdateBatcher.Batch(xs, ys, colors);
+    }
+
+    /* Sends the region once to every client that sees part of it, binary clients get it as one deflated image. */
+    private void publishRegion(Region region, TileRange tiles, UpdateBatcher.Batch painted)
+            throws JsonProcessingException {
+        // Single draws still waiting for their tick go out first, they are older than the region.
+        flushUpdates();
+        long start = System.nanoTime();
+        int messages = 0;
+        ByteBuffer binaryMessage = null;
+        String jsonMessage = null;
+        for (Subscriber subscriber : subscribers.values()) {
+            if (!subscriber.viewport().intersects(tiles)) {
+                continue;
+            }
+            if (subscriber.outbound().isBinary()) {
+                if (binaryMessage == null) {
+                    binaryMessage = encodeRegion(region);
+                }
+                subscriber.outbound().sendUpdate(null, binaryMessage);
+            } else {
+                if (jsonMessage == null) {
+                    jsonMessage = encodeUpdates(painted);
+                }
+                subscriber.outbound().sendUpdate(jsonMessage, null);
+            }
+            messages++;
+        }
+        metrics.recordBroadcast(start, messages, painted.size());
+        if (CanvasCluster.isEnabled()) {
+            CanvasCluster.publishUpdates(this, painted);
+        }
+    }
+
+    private static ByteBuffer encodeRegion(Region region) {
+        int[] colors = region.colors();
+        byte[] rgba = new byte[colors.length * 4];
+        for (int i = 0; i < colors.length; i++) {
+            if (colors[i] != PixelStore.EMPTY) {
+                rgba[i * 4] = (byte) (colors[i] >> 16);
+                rgba[i * 4 + 1] = (byte) (colors[i] >> 8);
+                rgba[i * 4 + 2] = (byte) colors[i];
+                rgba[i * 4 + 3] = (byte) 0xFF;
+            }
+        }
+        return BinaryProtocol.encodeRegion(region.x(), region.y(), region.width(), region.height(),
+                SnapshotCache.deflate(rgba));
+    }
+
+    public void sendRegionResponse(WsContext ctx, long result) {
+        try {
+            ctx.send(OBJECT_MAPPER.writeValueAsString(result > 0
+                    ? new DrawResponse("regionResponse", false, DrawResponse.RATE_LIMITED, result)
+                    : new DrawResponse("regionResponse", result == 0)));
+        } catch (Exception e) {
+            LOGGER.debug(e);
+        }
+    }
+
+    /* Through the subscriber's queue if there is one, so a client flooding draws without reading can't pile them up. */
+    private void sendRejection(WsContext ctx, String jsonMessage, ByteBuffer binaryMessage) {
+        Subscriber subscriber = subscribers.get(ctx.sessionId());
+        if (subscriber != null) {
+            subscriber.outbound().sendUpdate(jsonMessage, binaryMessage);
+        } else if (binaryMessage != null) {
+            ctx.send(binaryMessage);
+        } else {
+            ctx.send(jsonMessage);
+        }
+    }
+
+    private void handleImageRequest(WsMessageContext ctx) throws IOException {
+        try{
+            String base64Image = generateCanvasImage();
+            ctx.send(OBJECT_MAPPER.writeValueAsString(new ImageResponse("imageResponse", base64Image)));
+        }catch (Exception e){
+            LOGGER.debug(e);
+        }
+    }
+
+
+    private String generateCanvasImage() throws IOException {
+        return imageCache.getBase64();
+    }
 
-        return Base64.getEncoder().encodeToString(fileContent);
+    public ImageCache.RenderedImage getCanvasImage() throws IOException {
+        return imageCache.getImage();
     }
 
     private void cancelDrawResponse(WsMessageContext ctx) throws JsonProcessingException {
@@ -0,0 +1,90 @@
+package org.florian.duocanvas.session;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket per participant of one canvas.
+ * A participant may place up to burst pixels at once, the bucket refills with rate pixels per second.
+ * A rate of 0 turns the limit off.
+ */
+public class DrawLimiter {
+
+    // Canvases whose creator asked for no limits draw freely unless the operator sets a rate.
+    public static final int DEFAULT_RATE = Integer.getInteger("duocanvas.drawRate", 0);
+    public static final int DEFAULT_BURST = Integer.getInteger("duocanvas.drawBurst", 20);
+    // Loosest limits a canvas creator may ask for.
+    public static final int MAX_RATE = Integer.getInteger("duocanvas.maxDrawRate", 50);
+    public static final int MAX_BURST = Integer.getInteger("duocanvas.maxDrawBurst", 500);
+
+    private static final class Bucket {
+        private double tokens;
+        private long refilledAt;
+
+        private Bucket(double tokens, long refilledAt) {
+            this.tokens = tokens;
+            this.refilledAt = refilledAt;
+        }
+    }
+
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private volatile int rate;
+    private volatile int burst;
+
+    public DrawLimiter(int rate, int burst) {
+        setLimits(rate, burst);
+    }
+
+    public final void setLimits(int rate, int burst) {
+        this.rate = Math.max(0, rate);
+        this.burst = Math.max(1, burst);
+    }
+
+    /* Limits a canvas creator asked for, capped at MAX_RATE and MAX_BURST. */
+    public final void setClientLimits(int rate, int burst) {
+        setLimits(Math.min(rate, MAX_RATE), Math.min(burst, MAX_BURST));
+    }
+
+    public int getRate() {
+        return rate;
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+    /* Takes a token. Returns 0 if the draw may go ahead, otherwise the milliseconds until the next token. */
+    public long tryAcquire(String participant) {
+        return tryAcquire(participant, 1);
+    }
+
+    /*
+     * Takes one token per pixel of a bulk draw, all or none. A draw of more than burst pixels waits for a full
+     * bucket and leaves it in debt, so bulk draws never get more pixels per second than single draws.
+     */
+    public long tryAcquire(String participant, int permits) {
+        int currentRate = rate;
+        if (currentRate == 0) {
+            return 0;
+        }
+        int currentBurst = burst;
+        long now = System.nanoTime();
+        Bucket bucket = buckets.computeIfAbsent(participant, key -> new Bucket(currentBurst, now));
+        synchronized (bucket) {
+            double elapsedSeconds = (now - bucket.refilledAt) / (double) TimeUnit.SECONDS.toNanos(1);
+            bucket.tokens = Math.min(currentBurst, bucket.tokens + Math.max(0, elapsedSeconds) * currentRate);
+            bucket.refilledAt = Math.max(now, bucket.refilledAt);
+            int required = Math.min(permits, currentBurst);
+            if (bucket.tokens >= required) {
+                bucket.tokens -= permits;
+                return 0;
+            }
+            return (long) Math.ceil((required - bucket.tokens) * 1000 / currentRate);
+        }
+    }
+
+    public void remove(String participant) {
+        buckets.remove(participant);
+    }
+}
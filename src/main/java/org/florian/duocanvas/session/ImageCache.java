@@ -0,0 +1,170 @@
+package org.florian.duocanvas.session;
+
+import org.florian.duocanvas.canvas.Palette;
+import org.florian.duocanvas.canvas.PixelStore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Renders the canvas to PNG in memory and keeps the result until the next draw.
+ * Canvases with a palette are written as indexed PNGs, one byte per pixel.
+ */
+public class ImageCache {
+
+    // The epoch tells renders of different loads of a canvas apart, the version restarts at 0 on every load.
+    public record RenderedImage(long epoch, long version, byte[] png) {
+    }
+
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final byte COLOR_TYPE_RGB = 2;
+    private static final byte COLOR_TYPE_INDEXED = 3;
+
+    private final PixelStore pixels;
+    private final long epoch = ThreadLocalRandom.current().nextLong();
+    private long cachedVersion = -1;
+    private byte[] cachedPng;
+    private String cachedBase64;
+
+    public ImageCache(PixelStore pixels) {
+        this.pixels = pixels;
+    }
+
+    public synchronized RenderedImage getImage() throws IOException {
+        long version = pixels.getVersion();
+        if (version != cachedVersion) {
+            cachedPng = renderPng(pixels);
+            cachedBase64 = null;
+            cachedVersion = version;
+        }
+        return new RenderedImage(epoch, cachedVersion, cachedPng);
+    }
+
+    public synchronized String getBase64() throws IOException {
+        byte[] png = getImage().png();
+        if (cachedBase64 == null) {
+            cachedBase64 = Base64.getEncoder().encodeToString(png);
+        }
+        return cachedBase64;
+    }
+
+    /*
+     * Encodes the PNG one band of TILE_SIZE rows at a time, so rendering holds a single band of raw rows
+     * instead of a raster of the whole canvas. Rows are unfiltered: unpainted runs deflate to almost nothing.
+     */
+    public static byte[] renderPng(PixelStore pixels) throws IOException {
+        int width = pixels.getWidth();
+        int height = pixels.getHeight();
+        Palette palette = pixels.getPalette();
+        int bytesPerPixel = palette == null ? 3 : 1;
+
+        ByteArrayOutputStream png = new ByteArrayOutputStream(64 * 1024);
+        DataOutputStream out = new DataOutputStream(png);
+        out.write(PNG_SIGNATURE);
+        ByteBuffer header = ByteBuffer.allocate(13).putInt(width).putInt(height)
+                .put((byte) 8)
+                .put(palette == null ? COLOR_TYPE_RGB : COLOR_TYPE_INDEXED)
+                .put((byte) 0).put((byte) 0).put((byte) 0);
+        writeChunk(out, "IHDR", header.array(), 0, header.position());
+        if (palette != null) {
+            // Index 0 is the white background, palette colors follow.
+            byte[] entries = new byte[(palette.size() + 1) * 3];
+            Arrays.fill(entries, 0, 3, (byte) 0xFF);
+            for (int i = 0; i < palette.size(); i++) {
+                writeRgb(entries, (i + 1) * 3, palette.colorAt(i));
+            }
+            writeChunk(out, "PLTE", entries, 0, entries.length);
+        }
+
+        int stride = 1 + width * bytesPerPixel;
+        byte[] band = new byte[stride * PixelStore.TILE_SIZE];
+        Deflater deflater = new Deflater();
+        try (DeflaterOutputStream data = new DeflaterOutputStream(new ChunkOutputStream(out), deflater, 64 * 1024)) {
+            for (int bandY = 0; bandY < height; bandY += PixelStore.TILE_SIZE) {
+                int rows = Math.min(PixelStore.TILE_SIZE, height - bandY);
+                // Filter byte 0, then white (index 0 with a palette) where nothing is painted.
+                Arrays.fill(band, 0, rows * stride, palette == null ? (byte) 0xFF : 0);
+                for (int row = 0; row < rows; row++) {
+                    band[row * stride] = 0;
+                }
+                int firstTile = (bandY / PixelStore.TILE_SIZE) * pixels.getTilesX();
+                for (int tileX = 0; tileX < pixels.getTilesX(); tileX++) {
+                    if (!pixels.isTileAllocated(firstTile + tileX)) {
+                        continue;
+                    }
+                    int startX = tileX * PixelStore.TILE_SIZE;
+                    int endX = Math.min(width, startX + PixelStore.TILE_SIZE);
+                    for (int row = 0; row < rows; row++) {
+                        for (int x = startX; x < endX; x++) {
+                            int color = pixels.getColor(x, bandY + row);
+                            if (color == PixelStore.EMPTY) {
+                                continue;
+                            }
+                            int offset = row * stride + 1 + x * bytesPerPixel;
+                            if (palette == null) {
+                                writeRgb(band, offset, color);
+                            } else {
+                                band[offset] = (byte) (palette.indexOf(color) + 1);
+                            }
+                        }
+                    }
+                }
+                data.write(band, 0, rows * stride);
+            }
+        } finally {
+            deflater.end();
+        }
+        writeChunk(out, "IEND", band, 0, 0);
+        return png.toByteArray();
+    }
+
+    private static void writeRgb(byte[] target, int offset, int color) {
+        target[offset] = (byte) (color >> 16);
+        target[offset + 1] = (byte) (color >> 8);
+        target[offset + 2] = (byte) color;
+    }
+
+    private static void writeChunk(DataOutputStream out, String type, byte[] data, int offset, int length)
+            throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, offset, length);
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, offset, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /* Wraps every block the deflater flushes into an IDAT chunk. Closing it leaves the PNG open for IEND. */
+    private static final class ChunkOutputStream extends OutputStream {
+
+        private final DataOutputStream out;
+
+        ChunkOutputStream(DataOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > 0) {
+                writeChunk(out, "IDAT", b, off, len);
+            }
+        }
+    }
+}
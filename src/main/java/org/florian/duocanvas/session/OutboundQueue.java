@@ -0,0 +1,154 @@
+package org.florian.duocanvas.session;
+
+import io.javalin.websocket.WsContext;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.florian.duocanvas.WorkerPools;
+import org.florian.duocanvas.metrics.Metrics;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Outbound side of one subscribed socket.
+ * Counts the bytes handed to Jetty that are not written yet. A client that falls more than
+ * MAX_PENDING_BYTES behind stops receiving canvas updates; once its backlog has halved it gets
+ * a fresh snapshot of its viewport instead of the updates it missed.
+ * While a snapshot is sent, updates are held back and follow its last chunk.
+ */
+public class OutboundQueue {
+
+    static final long MAX_PENDING_BYTES = Long.getLong("duocanvas.maxPendingBytes", 1 << 20);
+    static final int MAX_HELD_UPDATES = 256;
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private record Message(String json, ByteBuffer binary) {
+    }
+
+    private final WsContext ctx;
+    private final boolean binary;
+    private final Runnable resync;
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private volatile boolean lagging;
+    private List<Message> held;
+
+    public OutboundQueue(WsContext ctx, boolean binary, Runnable resync) {
+        this.ctx = ctx;
+        this.binary = binary;
+        this.resync = resync;
+    }
+
+    public WsContext getContext() {
+        return ctx;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public long getPendingBytes() {
+        return pendingBytes.get();
+    }
+
+    public boolean isLagging() {
+        return lagging;
+    }
+
+    /* Canvas updates, dropped while the client is lagging. Only the message for the client's protocol is used. */
+    public synchronized void sendUpdate(String jsonMessage, ByteBuffer binaryMessage) {
+        if (lagging) {
+            Metrics.DROPPED_UPDATES.increment();
+            return;
+        }
+        if (held != null) {
+            if (held.size() < MAX_HELD_UPDATES) {
+                held.add(new Message(jsonMessage, binaryMessage));
+                return;
+            }
+            Metrics.DROPPED_UPDATES.add(held.size() + 1);
+            held = new ArrayList<>();
+            markLagging();
+            return;
+        }
+        if (pendingBytes.get() > MAX_PENDING_BYTES) {
+            Metrics.DROPPED_UPDATES.increment();
+            markLagging();
+            return;
+        }
+        write(jsonMessage, binaryMessage);
+    }
+
+    /* Snapshots and responses, never dropped. Binary clients get jsonMessage as text if binaryMessage is null. */
+    public synchronized void send(String jsonMessage, ByteBuffer binaryMessage) {
+        write(jsonMessage, binaryMessage);
+    }
+
+    public synchronized void beginSnapshot() {
+        if (held == null) {
+            held = new ArrayList<>();
+        }
+    }
+
+    public synchronized void endSnapshot() {
+        List<Message> updates = held;
+        held = null;
+        if (updates != null && !lagging) {
+            updates.forEach(update -> write(update.json(), update.binary()));
+        }
+    }
+
+    private void markLagging() {
+        lagging = true;
+        LOGGER.debug("{} is {} bytes behind, dropping updates until it caught up.", ctx.sessionId(), pendingBytes.get());
+        written(0);
+    }
+
+    private void write(String jsonMessage, ByteBuffer binaryMessage) {
+        boolean sendBinary = binary && binaryMessage != null;
+        int size = sendBinary ? binaryMessage.remaining() : jsonMessage.length();
+        pendingBytes.addAndGet(size);
+        WriteCallback callback = new WriteCallback() {
+            @Override
+            public void writeFailed(Throwable x) {
+                written(size);
+            }
+
+            @Override
+            public void writeSuccess() {
+                written(size);
+            }
+        };
+        try {
+            if (sendBinary) {
+                ctx.session.getRemote().sendBytes(binaryMessage.duplicate(), callback);
+            } else {
+                ctx.session.getRemote().sendString(jsonMessage, callback);
+            }
+        } catch (Exception e) {
+            written(size);
+            LOGGER.debug(e);
+        }
+    }
+
+    /* Runs on Jetty's callback threads, the resync itself goes to a virtual thread. */
+    private void written(int size) {
+        if (pendingBytes.addAndGet(-size) > MAX_PENDING_BYTES / 2 || !lagging) {
+            return;
+        }
+        synchronized (this) {
+            if (!lagging) {
+                return;
+            }
+            lagging = false;
+            // Held back like any snapshot, so updates from now on follow the resync.
+            beginSnapshot();
+        }
+        Metrics.RESYNCS.increment();
+        WorkerPools.schedule(Duration.ZERO, resync::run);
+    }
+}
@@ -0,0 +1,126 @@
+package org.florian.duocanvas.session;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.florian.duocanvas.Main;
+import org.florian.duocanvas.cluster.CanvasCluster;
+import org.florian.duocanvas.db.CanvasDatabase;
+import org.florian.duocanvas.db.DrawJournal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads canvases from the database on first use and evicts them again once nobody is viewing them.
+ * Main.ACTIVE_CANVAS_SESSIONS is the resident working set.
+ */
+public class SessionCache {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    static final long IDLE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(Long.getLong("duocanvas.idleTimeout", 300));
+    static final int MAX_RESIDENT_CANVASES = Integer.getInteger("duocanvas.maxResidentCanvases", 200);
+
+    private static final Map<String, CompletableFuture<CanvasSession>> LOADING = new ConcurrentHashMap<>();
+
+    /* Returns the resident canvas, hydrating it from the database if needed, or null if it doesn't exist. */
+    public static CanvasSession get(String canvasCode) {
+        if (canvasCode == null) {
+            return null;
+        }
+        CanvasSession session = Main.ACTIVE_CANVAS_SESSIONS.get(canvasCode);
+        if (session == null) {
+            session = load(canvasCode);
+        }
+        if (session != null) {
+            session.touch();
+        }
+        return session;
+    }
+
+    private static CanvasSession load(String canvasCode) {
+        CompletableFuture<CanvasSession> loading = new CompletableFuture<>();
+        CompletableFuture<CanvasSession> otherLoad = LOADING.putIfAbsent(canvasCode, loading);
+        if (otherLoad != null) {
+            return otherLoad.join();
+        }
+        try {
+            CanvasSession session = Main.ACTIVE_CANVAS_SESSIONS.get(canvasCode);
+            if (session == null && !CanvasCluster.isOwner(canvasCode)) {
+                session = CanvasCluster.loadReplica(canvasCode);
+            } else if (session == null) {
+                if (CanvasCluster.isEnabled() && CanvasDatabase.canvasExists(canvasCode)) {
+                    CanvasCluster.acquire(canvasCode);
+                }
+                session = loadFromDatabase(canvasCode);
+                if (session != null) {
+                    Main.ACTIVE_CANVAS_SESSIONS.put(canvasCode, session);
+                    LOGGER.debug("Loaded: {}", canvasCode);
+                }
+            }
+            loading.complete(session);
+            return session;
+        } catch (Exception e) {
+            LOGGER.debug(e);
+            loading.complete(null);
+            return null;
+        } finally {
+            LOADING.remove(canvasCode, loading);
+        }
+    }
+
+    /* The stored canvas with the journaled draws since its last backup, or null if it doesn't exist. */
+    public static CanvasSession loadFromDatabase(String canvasCode) throws IOException {
+        byte[] canvasBytes = CanvasDatabase.getCanvasBytesFromDatabase(canvasCode);
+        if (canvasBytes == null) {
+            return null;
+        }
+        CanvasSession session = CanvasDatabase.getCanvasDataFromBytes(canvasBytes);
+        CanvasDatabase.loadDrawLimits(session);
+        // Draws of an evicted canvas may still be queued, they have to be in the journal before replaying it.
+        DrawJournal.flush();
+        CanvasDatabase.replayJournal(session);
+        return session;
+    }
+
+    public static void evictIdleSessions() throws IOException {
+        long now = System.nanoTime();
+        List<CanvasSession> evictable = new ArrayList<>();
+        List<CanvasSession> evicted = new ArrayList<>();
+
+        for (CanvasSession session : Main.ACTIVE_CANVAS_SESSIONS.values()) {
+            // Other nodes still follow an owner with replicas.
+            if (!session.getParticipants().isEmpty() || session.getReplication().hasReplicaNodes()) {
+                continue;
+            }
+            if (now - session.getLastAccess() > IDLE_TIMEOUT_NANOS) {
+                evicted.add(session);
+            } else {
+                evictable.add(session);
+            }
+        }
+
+        int overBudget = Main.ACTIVE_CANVAS_SESSIONS.size() - evicted.size() - MAX_RESIDENT_CANVASES;
+        if (overBudget > 0) {
+            evictable.sort(Comparator.comparingLong(CanvasSession::getLastAccess));
+            evicted.addAll(evictable.subList(0, Math.min(overBudget, evictable.size())));
+        }
+        if (evicted.isEmpty()) {
+            return;
+        }
+
+        // Unregister first, so a late draw reloads the canvas instead of landing on the evicted copy.
+        evicted.forEach(session -> Main.ACTIVE_CANVAS_SESSIONS.remove(session.canvasCode, session));
+        CanvasDatabase.backupCanvasSessions(evicted);
+        if (CanvasCluster.isEnabled()) {
+            evicted.forEach(CanvasCluster::evicted);
+        }
+        LOGGER.debug("Evicted {} canvases, {} resident.", evicted.size(), Main.ACTIVE_CANVAS_SESSIONS.size());
+    }
+}
@@ -0,0 +1,138 @@
+package org.florian.duocanvas.session;
+
+import org.florian.duocanvas.canvas.PixelStore;
+import org.florian.duocanvas.canvas.TileRange;
+import org.florian.duocanvas.protocol.BinaryProtocol;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.Deflater;
+
+/**
+ * Keeps the canvas as deflated RGBA tiles for joins and viewport changes.
+ * Each tile counts its writes and remembers the count it was encoded at, so a request only
+ * re-encodes the tiles that were painted since the last one. Unpainted tiles are never encoded.
+ */
+public class SnapshotCache {
+
+    private final PixelStore pixels;
+    private final AtomicLongArray tileVersions;
+    private final long[] encodedVersions;
+    private final ByteBuffer[] encodedTiles;
+    private final int[] paintedCounts;
+
+    public SnapshotCache(PixelStore pixels) {
+        this.pixels = pixels;
+        int tileCount = pixels.getTileCount();
+        this.tileVersions = new AtomicLongArray(tileCount);
+        this.encodedVersions = new long[tileCount];
+        this.encodedTiles = new ByteBuffer[tileCount];
+        this.paintedCounts = new int[tileCount];
+        for (int tile = 0; tile < tileCount; tile++) {
+            tileVersions.set(tile, 1);
+        }
+    }
+
+    public void markPixel(int x, int y) {
+        tileVersions.incrementAndGet(pixels.tileOf(x, y));
+    }
+
+    public void markRegion(TileRange range) {
+        for (int tileY = range.minTileY(); tileY <= range.maxTileY(); tileY++) {
+            for (int tileX = range.minTileX(); tileX <= range.maxTileX(); tileX++) {
+                tileVersions.incrementAndGet(tileY * pixels.getTilesX() + tileX);
+            }
+        }
+    }
+
+    public void markAll() {
+        for (int tile = 0; tile < tileVersions.length(); tile++) {
+            tileVersions.incrementAndGet(tile);
+        }
+    }
+
+    /*
+     * Painted tiles inside range but outside excluded (may be null), busiest first.
+     * Unpainted tiles are left out, the client clears them itself.
+     */
+    public synchronized List<ByteBuffer> getChunks(TileRange range, TileRange excluded) {
+        List<Integer> painted = new ArrayList<>();
+        for (int tileY = range.minTileY(); tileY <= range.maxTileY(); tileY++) {
+            for (int tileX = range.minTileX(); tileX <= range.maxTileX(); tileX++) {
+                if (excluded != null && excluded.contains(tileX, tileY)) {
+                    continue;
+                }
+                int tile = tileY * pixels.getTilesX() + tileX;
+                if (!pixels.isTileAllocated(tile)) {
+                    continue;
+                }
+                long version = tileVersions.get(tile);
+                if (encodedVersions[tile] != version) {
+                    encodeTile(tile, tileX, tileY);
+                    encodedVersions[tile] = version;
+                }
+                if (paintedCounts[tile] > 0) {
+                    painted.add(tile);
+                }
+            }
+        }
+        painted.sort(Comparator.comparingInt((Integer tile) -> paintedCounts[tile]).reversed());
+
+        List<ByteBuffer> chunks = new ArrayList<>(painted.size());
+        for (int tile : painted) {
+            chunks.add(encodedTiles[tile].duplicate());
+        }
+        return chunks;
+    }
+
+    private void encodeTile(int tile, int tileX, int tileY) {
+        int startX = tileX * PixelStore.TILE_SIZE;
+        int startY = tileY * PixelStore.TILE_SIZE;
+        int columns = Math.min(PixelStore.TILE_SIZE, pixels.getWidth() - startX);
+        int rows = Math.min(PixelStore.TILE_SIZE, pixels.getHeight() - startY);
+
+        byte[] rgba = new byte[columns * rows * 4];
+        int painted = 0;
+        int offset = 0;
+        for (int y = startY; y < startY + rows; y++) {
+            for (int x = startX; x < startX + columns; x++) {
+                int color = pixels.getColor(x, y);
+                if (color != PixelStore.EMPTY) {
+                    rgba[offset] = (byte) (color >> 16);
+                    rgba[offset + 1] = (byte) (color >> 8);
+                    rgba[offset + 2] = (byte) color;
+                    rgba[offset + 3] = (byte) 0xFF;
+                    painted++;
+                }
+                offset += 4;
+            }
+        }
+        paintedCounts[tile] = painted;
+        encodedTiles[tile] = painted == 0
+                ? null
+                : BinaryProtocol.encodeSnapshotChunk(startX, startY, columns, rows, deflate(rgba));
+    }
+
+    static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteBuffer output = ByteBuffer.allocate(Math.max(64, data.length / 4));
+            while (!deflater.finished()) {
+                if (!output.hasRemaining()) {
+                    output = ByteBuffer.allocate(output.capacity() * 2).put(output.flip());
+                }
+                deflater.deflate(output);
+            }
+            byte[] compressed = new byte[output.position()];
+            output.flip().get(compressed);
+            return compressed;
+        } finally {
+            deflater.end();
+        }
+    }
+}
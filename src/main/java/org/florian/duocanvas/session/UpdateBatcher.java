@@ -0,0 +1,76 @@
+package org.florian.duocanvas.session;
+
+import org.florian.duocanvas.canvas.PixelStore;
+import org.florian.duocanvas.canvas.TileRange;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects draws of one canvas between two ticks.
+ * Repeated writes to the same pixel collapse into the last color.
+ */
+public class UpdateBatcher {
+
+    public record Batch(int[] xs, int[] ys, int[] colors) {
+
+        public int size() {
+            return xs.length;
+        }
+
+        /* The updates inside the given tiles, or this batch if all of them are. */
+        public Batch within(TileRange range) {
+            int[] selected = new int[size()];
+            int count = 0;
+            for (int i = 0; i < size(); i++) {
+                if (range.contains(xs[i] / PixelStore.TILE_SIZE, ys[i] / PixelStore.TILE_SIZE)) {
+                    selected[count++] = i;
+                }
+            }
+            if (count == size()) {
+                return this;
+            }
+            int[] visibleXs = new int[count];
+            int[] visibleYs = new int[count];
+            int[] visibleColors = new int[count];
+            for (int i = 0; i < count; i++) {
+                visibleXs[i] = xs[selected[i]];
+                visibleYs[i] = ys[selected[i]];
+                visibleColors[i] = colors[selected[i]];
+            }
+            return new Batch(visibleXs, visibleYs, visibleColors);
+        }
+    }
+
+    private final int width;
+    private final Map<Long, Integer> pending = new LinkedHashMap<>();
+
+    public UpdateBatcher(int width) {
+        this.width = width;
+    }
+
+    /* Returns true if this is the first pending update, i.e. a flush has to be scheduled. */
+    public synchronized boolean add(int x, int y, int color) {
+        boolean wasEmpty = pending.isEmpty();
+        pending.put((long) y * width + x, color);
+        return wasEmpty;
+    }
+
+    public synchronized Batch drain() {
+        int size = pending.size();
+        int[] xs = new int[size];
+        int[] ys = new int[size];
+        int[] colors = new int[size];
+
+        int i = 0;
+        for (Map.Entry<Long, Integer> update : pending.entrySet()) {
+            long index = update.getKey();
+            xs[i] = (int) (index % width);
+            ys[i] = (int) (index / width);
+            colors[i] = update.getValue();
+            i++;
+        }
+        pending.clear();
+        return new Batch(xs, ys, colors);
+    }
+}
@@ -1,16 +1,23 @@
-const socket = new WebSocket("ws://localhost:7777/canvas");
+// ?server=host:port picks another node of a cluster.
+const server = new URLSearchParams(location.search).get("server") || "localhost:7777";
+const socket = new WebSocket("ws://" + server + "/canvas");
+socket.binaryType = "arraybuffer";
 const startURL = "http://localhost:63342/DuoCanvas/src/main/resources/public/canvas.html"
+const imageURL = "http://" + server + "/image/";
 
 let lastDrawTime = null;
 let selectedColor = "#000"; // Save selected color
 let canvasCode = new URLSearchParams(document.location.search).get("canvasCode");
 
 const interval = 15000;
+const useBinaryProtocol = true;
 let pingInterval;
 let isCanvasLoaded = false;
 let colorPickerOpen = false;
 let lastX;
 let lastY;
+let tileSize = 128;
+let viewportTimeout;
 
 const canvasContainer = document.getElementById("canvas-container");
 const preLoader = document.getElementById("preloader_img");
@@ -78,6 +85,11 @@ socket.onerror = function (error) {
 
 socket.onmessage = function (event) {
 
+    if (event.data instanceof ArrayBuffer) {
+        handleBinaryMessage(new DataView(event.data));
+        return;
+    }
+
     let jsonData = JSON.parse(event.data);
     let type = jsonData.type;
 
@@ -99,10 +111,24 @@ socket.onmessage = function (event) {
             let params = new URLSearchParams(url.search);
 
             params.set("canvasCode", canvasCode);
+            if (server !== "localhost:7777") {
+                params.set("server", server);
+            }
             url.search = params.toString();
 
             window.location.href = url.toString();
 
+            break;
+        /* Size of the canvas, sent before its tiles. */
+        case "canvasInfo":
+            tileSize = jsonData.tileSize;
+            if (canvas.width !== jsonData.width || canvas.height !== jsonData.height) {
+                canvas.width = jsonData.width;
+                canvas.height = jsonData.height;
+            }
+            if (jsonData.palette) {
+                usePalette(jsonData.palette);
+            }
             break;
         /* Receives canvas that needs to be drawn*/
         case "canvasResponse":
@@ -116,15 +142,178 @@ socket.onmessage = function (event) {
                 jsonData.color
             );
             break;
+        /* Updates the canvas with every pixel placed since the last tick.*/
+        case "canvasUpdates":
+            for (let i = 0; i < jsonData.updates.length; i++) {
+                let update = jsonData.updates[i];
+                drawRect(update.x, update.y, update.color);
+            }
+            break;
+        case "drawResponse":
+            if (!jsonData.success) {
+                drawRejected(jsonData.reason, jsonData.retryAfter);
+            }
+            break;
+        /* Answer to a fill, floodFill, line or stamp request. */
+        case "regionResponse":
+            if (!jsonData.success) {
+                console.log("Region request failed" + (jsonData.reason === "rateLimited"
+                    ? ": Rate limited, retry in " + jsonData.retryAfter + "ms." : "."));
+            }
+            break;
         case "imageResponse":
             downloadFile(jsonData.image).then(r => console.log("Downloading image..."));
             break;
     }
 }
 
+/* Binary protocol, see BinaryProtocol.java */
+
+const OP_DRAW = 0x01;
+const OP_DRAW_RESPONSE = 0x02;
+const OP_UPDATE = 0x03;
+const OP_UPDATES = 0x04;
+const OP_SNAPSHOT_START = 0x05;
+const OP_SNAPSHOT_CHUNK = 0x06;
+const OP_REGION = 0x07;
+
+const DRAW_STATUS_OK = 1;
+const DRAW_STATUS_RATE_LIMITED = 2;
+
+let pendingSnapshotChunks = 0;
+let queuedUpdates = [];
+let chunkQueue = Promise.resolve();
+
+function handleBinaryMessage(view) {
+    let opcode = view.getUint8(0);
+
+    // Chunks are drawn asynchronously, so updates have to wait until the tiles are on screen.
+    if ((!isCanvasLoaded || pendingSnapshotChunks > 0)
+        && (opcode === OP_UPDATE || opcode === OP_UPDATES || opcode === OP_REGION)) {
+        queuedUpdates.push(view);
+        return;
+    }
+    switch (opcode) {
+        case OP_DRAW_RESPONSE:
+            let status = view.getUint8(1);
+            if (status !== DRAW_STATUS_OK) {
+                drawRejected(status === DRAW_STATUS_RATE_LIMITED ? "rateLimited" : null, view.getInt32(2));
+            }
+            break;
+        case OP_UPDATE:
+            drawBinaryPixel(view, 1);
+            break;
+        case OP_UPDATES:
+            let count = view.getInt32(1);
+            for (let i = 0; i < count; i++) {
+                drawBinaryPixel(view, 5 + i * 11);
+            }
+            break;
+        case OP_SNAPSHOT_START:
+            // Viewport changes send further snapshots, their chunks add up.
+            pendingSnapshotChunks += view.getInt32(1);
+            if (pendingSnapshotChunks === 0) {
+                snapshotLoaded();
+            }
+            break;
+        case OP_REGION:
+            // Decoded asynchronously like a chunk, updates sent after it wait for it the same way.
+            pendingSnapshotChunks++;
+            chunkQueue = chunkQueue.then(() => drawSnapshotChunk(view, false))
+                .catch(e => console.log("Could not draw region: " + e))
+                .then(() => {
+                    pendingSnapshotChunks--;
+                    if (pendingSnapshotChunks === 0) {
+                        snapshotLoaded();
+                    }
+                });
+            break;
+        case OP_SNAPSHOT_CHUNK:
+            // Drawn one after another, so a tile sent twice ends up with its latest content.
+            chunkQueue = chunkQueue.then(() => drawSnapshotChunk(view, true))
+                .catch(e => console.log("Could not load canvas chunk: " + e))
+                .then(() => {
+                    pendingSnapshotChunks--;
+                    if (pendingSnapshotChunks === 0) {
+                        snapshotLoaded();
+                    }
+                });
+            break;
+    }
+}
+
+/* The pixel was not placed, so the cooldown doesn't apply. */
+function drawRejected(reason, retryAfter) {
+    lastDrawTime = null;
+    placeButtonText.innerText = "Place!";
+    placeButton.style.backgroundColor = "#d73a00";
+    placeButton.disabled = false;
+    if (reason === "rateLimited") {
+        console.log("Draw request failed: Rate limited, retry in " + retryAfter + "ms.");
+    } else {
+        console.log("Draw request failed.");
+    }
+}
+
+function snapshotLoaded() {
+    showLoadedCanvas();
+    let updates = queuedUpdates;
+    queuedUpdates = [];
+    updates.forEach(handleBinaryMessage);
+}
+
+/* Chunks replace their tile, regions (clear = false) are drawn over the canvas. */
+async function drawSnapshotChunk(view, clear) {
+    let x = view.getInt32(1);
+    let y = view.getInt32(5);
+    let width = view.getInt32(9);
+    let height = view.getInt32(13);
+
+    let compressed = new Blob([new Uint8Array(view.buffer, view.byteOffset + 17, view.byteLength - 17)]);
+    let stream = compressed.stream().pipeThrough(new DecompressionStream("deflate"));
+    let rgba = new Uint8ClampedArray(await new Response(stream).arrayBuffer());
+
+    // A chunk holds the whole tile, unpainted pixels are fully transparent.
+    let chunkCanvas = new OffscreenCanvas(width, height);
+    chunkCanvas.getContext("2d").putImageData(new ImageData(rgba, width, height), 0, 0);
+    if (clear) {
+        ctx.clearRect(x, y, width, height);
+    }
+    ctx.drawImage(chunkCanvas, x, y);
+}
+
+function drawBinaryPixel(view, offset) {
+    let rgb = (view.getUint8(offset + 8) << 16) | (view.getUint8(offset + 9) << 8) | view.getUint8(offset + 10);
+    drawRect(view.getInt32(offset), view.getInt32(offset + 4), "#" + rgb.toString(16).padStart(6, "0"));
+}
+
+function encodeBinaryDraw(color, x, y) {
+    let hex = color.replace("#", "");
+    if (hex.length === 3) {
+        hex = hex[0] + hex[0] + hex[1] + hex[1] + hex[2] + hex[2];
+    }
+    let rgb = parseInt(hex, 16);
+
+    let view = new DataView(new ArrayBuffer(12));
+    view.setUint8(0, OP_DRAW);
+    view.setInt32(1, x);
+    view.setInt32(5, y);
+    view.setUint8(9, (rgb >> 16) & 0xFF);
+    view.setUint8(10, (rgb >> 8) & 0xFF);
+    view.setUint8(11, rgb & 0xFF);
+    return view.buffer;
+}
+
 /* Functions used by the handlers */
 
 function sendImageRequest() {
+    if (useBinaryProtocol) {
+        fetch(imageURL + canvasCode)
+            .then(response => response.blob())
+            .then(blob => downloadBlob(blob))
+            .catch(e => console.log("Could not download image: " + e));
+        return;
+    }
     const imageRequest = {
         requestType: "image",
         canvasCode: canvasCode,
@@ -139,6 +328,13 @@ function sendDrawRequest(userid, color, x, y) {
         return false;
     }
 
+    if (useBinaryProtocol) {
+        socket.send(encodeBinaryDraw(color, x, y));
+        showFooter(false);
+        lastDrawTime = new Date().getTime();
+        return;
+    }
+
     const drawRequest = {
         requestType: "draw",
         canvasCode: canvasCode,
@@ -157,10 +353,47 @@ function sendCanvasRequest() {
     const canvasRequest = {
         requestType: "canvas",
         canvasCode: canvasCode,
+        protocol: useBinaryProtocol ? "binary" : "json",
+        viewport: currentViewport(),
     };
     socket.send(JSON.stringify(canvasRequest))
 }
 
+/* Subscribes to the visible part of the canvas, at most once per 200ms while panning or zooming. */
+function sendViewportRequest() {
+    if (!isCanvasLoaded) {
+        return;
+    }
+    clearTimeout(viewportTimeout);
+    viewportTimeout = setTimeout(function () {
+        const viewportRequest = {
+            requestType: "viewport",
+            canvasCode: canvasCode,
+            viewport: currentViewport(),
+        };
+        socket.send(JSON.stringify(viewportRequest));
+    }, 200);
+}
+
+/* Visible canvas area in canvas pixels, rounded out to whole pixels. */
+function currentViewport() {
+    const rect = canvas.getBoundingClientRect();
+    const scaleX = canvas.width / rect.width;
+    const scaleY = canvas.height / rect.height;
+
+    const left = Math.max(0, -rect.left);
+    const top = Math.max(0, -rect.top);
+    const right = Math.min(rect.width, window.innerWidth - rect.left);
+    const bottom = Math.min(rect.height, window.innerHeight - rect.top);
+
+    return {
+        x: Math.floor(left * scaleX),
+        y: Math.floor(top * scaleY),
+        width: Math.max(0, Math.ceil((right - left) * scaleX)),
+        height: Math.max(0, Math.ceil((bottom - top) * scaleY)),
+    };
+}
+
 function createNewSession() {
     const request = {
         requestType: "session",
@@ -207,19 +440,26 @@ function loadCanvas(canvasData) {
 
             drawRect(x, y, color);
         }
-        preLoader.style.display = "none";
-        canvasContainer.style.display = "fixed";
-        selectedPixelImage.style.display = "block";
-        selectedPixelImage.style.left = (800 - 25 / 2) + 'px';
-        selectedPixelImage.style.top = (800 - 25 / 2) + 'px';
-        placeButton.style.display = "block";
-
-        isCanvasLoaded = true;
+        showLoadedCanvas();
     } catch (e) {
         console.log("Could not load pixel: " + e);
     }
 }
 
+function showLoadedCanvas() {
+    if (isCanvasLoaded) {
+        return;
+    }
+    preLoader.style.display = "none";
+    canvasContainer.style.display = "fixed";
+    selectedPixelImage.style.display = "block";
+    selectedPixelImage.style.left = (800 - 25 / 2) + 'px';
+    selectedPixelImage.style.top = (800 - 25 / 2) + 'px';
+    placeButton.style.display = "block";
+
+    isCanvasLoaded = true;
+}
+
 function drawRect(x, y, color) {
     ctx.fillStyle = color
     ctx.fillRect(x, y, 1, 1)
@@ -280,6 +520,7 @@ function zoomAnimation() {
         requestAnimationFrame(zoomAnimation);
     } else {
         isZooming = false;
+        sendViewportRequest();
     }
 }
 
@@ -295,6 +536,16 @@ async function downloadFile(file) {
     document.body.removeChild(a);
 }
 
+function downloadBlob(blob) {
+    let a = document.createElement('a');
+    a.download = canvasCode + '.png';
+    a.href = URL.createObjectURL(blob);
+    document.body.appendChild(a);
+    a.click();
+    document.body.removeChild(a);
+    URL.revokeObjectURL(a.href);
+}
+
 let isDragging = false;
 let startX, startY;
 let offsetX = 0, offsetY = 0;
@@ -320,22 +571,44 @@ document.addEventListener('mousemove', (e) => {
 });
 
 document.addEventListener('mouseup', () => {
+    if (isDragging) {
+        sendViewportRequest();
+    }
     isDragging = false;
 
     initialOffsetX += offsetX;
     initialOffsetY += offsetY;
 });
 
+window.addEventListener('resize', sendViewportRequest);
+
+
+colorSelector.forEach(radio => radio.addEventListener('click', selectSwatch));
 
-colorSelector.forEach(radio => {
-    radio.addEventListener('click', (e) => {
-        const label = e.target.closest('.radio-button-label');
-        const swatch = label.querySelector('.swatch');
+function selectSwatch(e) {
+    const label = e.target.closest('.radio-button-label');
+    const swatch = label.querySelector('.swatch');
 
-        selectedColor = swatch.dataset.color;
-        new Audio("sounds/switch_color.mp3").play();
+    selectedColor = swatch.dataset.color;
+    new Audio("sounds/switch_color.mp3").play();
+}
+
+/* The canvas only accepts its palette's colors, so they replace the default swatches. */
+function usePalette(colors) {
+    const swatches = document.getElementById("swatches");
+    swatches.innerHTML = "";
+    colors.forEach(color => {
+        const label = document.createElement("label");
+        label.className = "radio-button-label";
+        label.innerHTML = '<input type="radio" name="radio-control" /><div class="swatch"></div>';
+        const swatch = label.querySelector(".swatch");
+        swatch.dataset.color = color;
+        swatch.style.background = color;
+        label.querySelector("input").addEventListener('click', selectSwatch);
+        swatches.appendChild(label);
     });
-});
+    selectedColor = colors[0];
+}
 
 window.addEventListener('load', function () {
     if (canvasCode != null) {